@@ -1,47 +1,186 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+/**
+ * Echoes every line each client sends back to it, prefixed with "Echo: ",
+ * until the client closes its side of the connection.
+ *
+ * The main thread accepts connections and deals them out to a few reactor
+ * threads (one per CPU unless given), each serving its clients from one
+ * Selector. A client's bytes are echoed as they arrive, so a line longer than
+ * the buffers streams through, and reading and writing go on at the same
+ * time; a client that stops reading its echoes is no longer read from until
+ * it catches up.
+ */
 public class EchoServer {
+    static final byte[] PREFIX = "Echo: ".getBytes(StandardCharsets.US_ASCII);
+    static final int BUFFER = 64 * 1024; // bytes buffered each way per client
+
+    /**
+     * One client: what it sent that is not echoed yet, and the echo not
+     * written yet.
+     */
+    static class Client {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER);
+        final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER + PREFIX.length);
+        boolean lineStart = true; // the next byte starts a line
+        boolean eof = false; // the client has closed its side
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Moves as much of what was read into the echo as fits, prefixing
+         * each line.
+         */
+        void echo() {
+            in.flip();
+            while (in.hasRemaining() && out.remaining() > PREFIX.length) {
+                if (lineStart) {
+                    out.put(PREFIX);
+                    lineStart = false;
+                }
+                int end = in.position();
+                int last = Math.min(in.limit(), in.position() + out.remaining());
+                while (end < last && in.get(end) != '\n') {
+                    end++;
+                }
+                if (end < last) {
+                    end++; // the newline goes too
+                    lineStart = true;
+                }
+                out.put(in.slice(in.position(), end - in.position()));
+                in.position(end);
+            }
+            in.compact();
+        }
+    }
+
+    /**
+     * Serves its clients from one Selector.
+     */
+    static class Reactor implements Runnable {
+        final Selector selector;
+        final ConcurrentLinkedQueue<SocketChannel> arrivals = new ConcurrentLinkedQueue<>();
+
+        Reactor() throws IOException {
+            selector = Selector.open();
+        }
+
+        void add(SocketChannel channel) {
+            arrivals.add(channel);
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = arrivals.poll()) != null) {
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        channel.register(selector, SelectionKey.OP_READ, new Client(channel));
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        serve(key);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Reads what the client sent, echoes it, and writes out as much of the
+         * echo as the socket takes.
+         */
+        void serve(SelectionKey key) {
+            Client c = (Client) key.attachment();
+            try {
+                if (key.isReadable() && c.channel.read(c.in) < 0) {
+                    c.eof = true;
+                }
+                c.echo();
+                c.out.flip();
+                c.channel.write(c.out);
+                c.out.compact();
+                boolean pending = c.out.position() > 0 || c.in.position() > 0;
+                if (c.eof && !pending) {
+                    close(key, "Connection closed by client");
+                    return;
+                }
+                // read only while there is room to echo what comes in
+                int ops = 0;
+                if (!c.eof && c.in.hasRemaining()) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                if (pending) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ops);
+            } catch (IOException e) {
+                close(key, "Connection lost: " + e.getMessage());
+            }
+        }
+
+        void close(SelectionKey key, String why) {
+            key.cancel();
+            try {
+                ((Client) key.attachment()).channel.close();
+            } catch (IOException e) {
+                System.out.println("IO:" + e.getMessage());
+            }
+            System.out.println(why);
+        }
+    }
 
     public static void main(String[] args) {
 
-        if (args.length != 1) {
-            System.out.println("Enter server port number");
+        if (args.length != 1 && args.length != 2) {
+            System.out.println("Enter server port number [and #reactor threads]");
             return;
         }
-        ServerSocket s = null;
+        ServerSocketChannel s = null;
         try {
             int serverPort = Integer.parseInt(args[0]);
+            int threads = (args.length > 1) ? Integer.parseInt(args[1])
+                    : Runtime.getRuntime().availableProcessors();
 
             if (serverPort <= 5000 || serverPort > 65535) {
                 System.out.println("Enter a non reserved port between 5001 and 65535");
             }
-            s = new ServerSocket(serverPort);
-            System.out.println("Opened server port on port: " + serverPort);
-
-            Socket incomingSocket = s.accept();
-
-            PrintWriter out = new PrintWriter(new OutputStreamWriter(incomingSocket.getOutputStream()));
-            BufferedReader in = new BufferedReader(new InputStreamReader(incomingSocket.getInputStream()));
-
-            String userInput;
-            // do{
-            userInput = in.readLine();
-            out.println("Echo: " + userInput);
-            System.out.println(userInput);
-            out.flush();
-            // }while (userInput != null);
-
-            System.out.println("Connection closed by client");
+            Reactor[] reactors = new Reactor[Math.max(1, threads)];
+            for (int i = 0; i < reactors.length; i++) {
+                reactors[i] = new Reactor();
+                new Thread(reactors[i], "echo-reactor-" + i).start();
+            }
+            s = ServerSocketChannel.open();
+            s.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            s.bind(new InetSocketAddress(serverPort), 1024);
+            System.out.println("Opened server port on port: " + serverPort + " with " + reactors.length
+                    + " reactor thread(s)");
 
+            for (int n = 0;; n++) {
+                reactors[n % reactors.length].add(s.accept());
+            }
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
             try {
-                s.close();
+                if (s != null) {
+                    s.close();
+                }
             } catch (Exception e) {
                 System.out.println("IO:" + e.getMessage());
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,202 @@
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.*;
+import java.util.Arrays;
+
+// Measures the round trip of an array of doubles through TcpBenchServer for
+// each message size and each way of sending it (see TcpBenchServer), and
+// prints the 50th, 90th and 99th percentile and the worst round trip, and the
+// throughput, counting the bytes both ways. Each size is sent a few times to
+// warm up before it is timed, and large sizes get fewer rounds, so that each
+// moves about LIMIT bytes. The default sizes go from 1B, sent as one double,
+// to 16MB.
+public class TcpBenchClient {
+	static final int BUFFER = 64 * 1024; // bytes buffered by the stream paths
+	static final long LIMIT = 256L * 1024 * 1024; // bytes timed per size, at most
+	static final int WARMUP = 10; // rounds not timed
+	static final int[] SIZES = { 1, 16, 256, 4 * 1024, 64 * 1024, 1024 * 1024, 16 * 1024 * 1024 };
+
+	// One connection, over which an array goes back and forth.
+	interface Path extends Closeable {
+		// Sends data and waits for it to come back.
+		void roundTrip(double[] data) throws IOException, ClassNotFoundException;
+	}
+
+	static class ObjectPath implements Path {
+		final Socket socket;
+		final ObjectOutputStream out;
+		final ObjectInputStream in;
+
+		ObjectPath(String server, int port) throws IOException {
+			socket = new Socket(server, port);
+			socket.setTcpNoDelay(true);
+			socket.getOutputStream().write('O');
+			out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER));
+			out.flush(); // the stream header, which the server waits for
+			in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER));
+		}
+
+		public void roundTrip(double[] data) throws IOException, ClassNotFoundException {
+			out.writeUnshared(data); // send data
+			out.reset(); // or the next round would send only a reference
+			out.flush();
+			double[] back = (double[]) in.readObject(); // receive data
+			check(back.length == data.length && back[back.length - 1] == data[data.length - 1]);
+		}
+
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	static class DataPath implements Path {
+		final Socket socket;
+		final DataOutputStream out;
+		final DataInputStream in;
+		double[] back = new double[0];
+
+		DataPath(String server, int port) throws IOException {
+			socket = new Socket(server, port);
+			socket.setTcpNoDelay(true);
+			socket.getOutputStream().write('D');
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER));
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER));
+		}
+
+		public void roundTrip(double[] data) throws IOException {
+			out.writeInt(data.length); // send data
+			for (int i = 0; i < data.length; i++)
+				out.writeDouble(data[i]);
+			out.flush();
+			int size = in.readInt(); // receive data
+			if (back.length != size)
+				back = new double[size];
+			for (int i = 0; i < size; i++)
+				back[i] = in.readDouble();
+			check(size == data.length && back[size - 1] == data[size - 1]);
+		}
+
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	static class BufferPath implements Path {
+		final SocketChannel channel;
+		final ByteBuffer header = ByteBuffer.allocate(4);
+		ByteBuffer out = ByteBuffer.allocateDirect(0);
+		ByteBuffer in = ByteBuffer.allocateDirect(0);
+
+		BufferPath(String server, int port) throws IOException {
+			channel = SocketChannel.open(new InetSocketAddress(server, port));
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.write(ByteBuffer.wrap(new byte[] { 'N' }));
+		}
+
+		public void roundTrip(double[] data) throws IOException {
+			int bytes = data.length * Double.BYTES;
+			if (out.capacity() < bytes) {
+				out = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+				in = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+			}
+			header.clear();
+			header.putInt(data.length).flip(); // send data
+			out.clear();
+			out.asDoubleBuffer().put(data);
+			out.limit(bytes);
+			ByteBuffer[] request = { header, out };
+			while (header.hasRemaining() || out.hasRemaining())
+				channel.write(request);
+			header.clear(); // receive data
+			in.clear().limit(bytes);
+			TcpBenchServer.readFully(channel, header);
+			TcpBenchServer.readFully(channel, in);
+			check(header.getInt(0) == data.length && in.getDouble(bytes - Double.BYTES) == data[data.length - 1]);
+		}
+
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	static void check(boolean echoed) throws IOException {
+		if (!echoed)
+			throw new IOException("the server sent back something else");
+	}
+
+	static Path open(String mode, String server, int port) throws IOException {
+		switch (mode) {
+		case "object":
+			return new ObjectPath(server, port);
+		case "data":
+			return new DataPath(server, port);
+		case "nio":
+			return new BufferPath(server, port);
+		default:
+			throw new IllegalArgumentException("unknown mode " + mode);
+		}
+	}
+
+	// Times the round trips of one size over path and prints a line for them.
+	static void measure(String mode, Path path, int size) throws IOException, ClassNotFoundException {
+		double[] data = new double[Math.max(1, size / Double.BYTES)]; // initialize data
+		for (int i = 0; i < data.length; i++)
+			data[i] = (double) (i % 128);
+		long bytes = (long) data.length * Double.BYTES;
+		int rounds = (int) Math.max(5, Math.min(1000, LIMIT / bytes));
+
+		for (int i = 0; i < Math.min(WARMUP, rounds); i++)
+			path.roundTrip(data);
+		long[] rtt = new long[rounds];
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			path.roundTrip(data);
+			rtt[i] = System.nanoTime() - start;
+		}
+		long total = 0;
+		for (long t : rtt)
+			total += t;
+		Arrays.sort(rtt);
+		System.out.printf("%-7s %10d %6d %12.1f %12.1f %12.1f %12.1f %10.2f%n", mode, bytes, rounds,
+				percentile(rtt, 50), percentile(rtt, 90), percentile(rtt, 99), rtt[rounds - 1] / 1e3,
+				2.0 * bytes * rounds / (1 << 20) / (total / 1e9));
+	}
+
+	// @return the p-th percentile of sorted, in microseconds
+	static double percentile(long[] sorted, int p) {
+		int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, i)] / 1e3;
+	}
+
+	public static void main(String args[]) {
+		if (args.length < 2) {
+			System.err.println("usage: java TcpBenchClient port server_ip [object|data|nio|all] [size...]");
+			return;
+		}
+		int port = Integer.parseInt(args[0]);
+		String[] modes = { "object", "data", "nio" };
+		if (args.length > 2 && !args[2].equals("all"))
+			modes = new String[] { args[2] };
+		int[] sizes = SIZES;
+		if (args.length > 3) {
+			sizes = new int[args.length - 3];
+			for (int i = 0; i < sizes.length; i++)
+				sizes[i] = Integer.parseInt(args[i + 3]);
+		}
+
+		System.out.printf("%-7s %10s %6s %12s %12s %12s %12s %10s%n", "path", "bytes", "rounds", "p50(us)",
+				"p90(us)", "p99(us)", "max(us)", "MB/s");
+		try {
+			for (String mode : modes) {
+				try (Path path = open(mode, args[1], port)) { // establish a connection
+					for (int size : sizes)
+						measure(mode, path, size);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+// The echo side of TcpBenchClient: returns every array of doubles a client
+// sends, unchanged, until the client closes the connection. The first byte a
+// client sends picks how the arrays travel:
+//   'O' ObjectOutputStream/ObjectInputStream, as in TcpServerDouble
+//   'D' DataOutputStream/DataInputStream, an int count then the doubles
+//   'N' a SocketChannel and ByteBuffers, an int count then the raw bytes
+// Each client is served by its own thread, so runs may overlap.
+public class TcpBenchServer {
+	static final int BUFFER = 64 * 1024; // bytes buffered by the stream paths
+
+	public static void main(String args[]) {
+		if (args.length != 1) {
+			System.err.println("usage: java TcpBenchServer port");
+			return;
+		}
+		try {
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			server.bind(new InetSocketAddress(Integer.parseInt(args[0])));
+			System.out.println("Server started on port: " + args[0]);
+			while (true) {
+				SocketChannel channel = server.accept(); // establish a connection
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				new Thread(() -> serve(channel)).start();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Echoes one client's arrays the way its first byte asks for.
+	static void serve(SocketChannel channel) {
+		ByteBuffer mode = ByteBuffer.allocate(1);
+		try (channel) {
+			if (channel.read(mode) < 0)
+				return;
+			System.out.println("Client connected: " + (char) mode.get(0));
+			switch (mode.get(0)) {
+			case 'O':
+				echoObjects(channel.socket());
+				break;
+			case 'D':
+				echoData(channel.socket());
+				break;
+			case 'N':
+				echoBuffers(channel);
+				break;
+			default:
+				System.err.println("unknown mode " + mode.get(0));
+			}
+		} catch (EOFException e) {
+			// the client is done
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		System.out.println("Client disconnected");
+	}
+
+	static void echoObjects(Socket socket) throws IOException, ClassNotFoundException {
+		ObjectOutputStream out = new ObjectOutputStream(
+				new BufferedOutputStream(socket.getOutputStream(), BUFFER));
+		out.flush(); // the stream header, which the client waits for
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER));
+		while (true) {
+			double[] data = (double[]) in.readObject(); // receive data
+			out.writeUnshared(data); // send back data
+			out.reset(); // forget it, or every array would stay referenced
+			out.flush();
+		}
+	}
+
+	static void echoData(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER));
+		double[] data = new double[0];
+		while (true) {
+			int size = in.readInt(); // receive data
+			if (data.length != size)
+				data = new double[size];
+			for (int i = 0; i < size; i++)
+				data[i] = in.readDouble();
+			out.writeInt(size); // send back data
+			for (int i = 0; i < size; i++)
+				out.writeDouble(data[i]);
+			out.flush();
+		}
+	}
+
+	static void echoBuffers(SocketChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(4);
+		ByteBuffer data = ByteBuffer.allocateDirect(0);
+		while (true) {
+			header.clear();
+			readFully(channel, header); // receive data
+			int bytes = header.getInt(0) * Double.BYTES;
+			if (data.capacity() < bytes)
+				data = ByteBuffer.allocateDirect(bytes);
+			data.clear().limit(bytes);
+			readFully(channel, data);
+			header.flip(); // send back data
+			data.flip();
+			ByteBuffer[] reply = { header, data };
+			while (header.hasRemaining() || data.hasRemaining())
+				channel.write(reply);
+		}
+	}
+
+	// Fills buffer from channel, throwing EOFException if it closes first.
+	static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0)
+				throw new EOFException();
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * ParallelMap.java:<p>
+ * distributes an element-wise map over a double[] across all MPI ranks.
+ *
+ * The array lives only on the master. Each rank is given a balanced block
+ * (sizes differ by at most one element) with Scatterv, applies the operator to
+ * its block using a parallel stream, and the blocks are collected back into the
+ * master's array with Gatherv. The master's own block is never sent: its count
+ * in the Scatterv/Gatherv calls is 0 and it computes directly on the original
+ * array, so no temporary copies are made on the master.
+ *
+ * @author  Joshua Landron
+ * @version 19Oct2026
+ */
+import mpi.*; // for mpiJava
+import java.util.function.DoubleUnaryOperator;
+import java.util.stream.IntStream;
+
+public class ParallelMap {
+	private final Intracomm comm; // communicator the map runs over
+	private final int root; // the rank that owns the whole array
+	private final int myRank;
+	private final int length; // the size of the whole array
+	private final int[] counts; // #elements allocated to each rank
+	private final int[] displs; // offset of each rank's block in the array
+
+	/**
+	 * Computes the block decomposition for an array of the given length.
+	 *
+	 * @param comm   communicator the map runs over, usually MPI.COMM_WORLD
+	 * @param root   rank that holds the whole array
+	 * @param length the size of the whole array
+	 */
+	public ParallelMap(Intracomm comm, int root, int length) throws MPIException {
+		this.comm = comm;
+		this.root = root;
+		this.myRank = comm.Rank();
+		this.length = length;
+		int ranks = comm.Size();
+		counts = new int[ranks];
+		displs = new int[ranks];
+		int stripe = length / ranks;
+		int remainder = length % ranks;
+		for (int rank = 0; rank < ranks; rank++) {
+			// the first "remainder" ranks take one extra element
+			counts[rank] = stripe + ((rank < remainder) ? 1 : 0);
+			displs[rank] = (rank < remainder) ? stripe * rank + rank : stripe * rank + remainder;
+		}
+	}
+
+	/**
+	 * Applies op to every element of the distributed array. The master passes
+	 * the whole array and gets it back with every element mapped in place; the
+	 * other ranks pass null and get back their own mapped block.
+	 *
+	 * @param data the whole array on the master, ignored on the other ranks
+	 * @param op   the operator applied to each element
+	 * @return the mapped array on the master, the local block elsewhere
+	 */
+	public double[] map(double[] data, DoubleUnaryOperator op) throws MPIException {
+		double[] block = scatter(data);
+		apply(block, localOffset(), localCount(), op);
+		gather(block, data);
+		return (myRank == root) ? data : block;
+	}
+
+	/**
+	 * Sends each rank its block of the master's array.
+	 *
+	 * @param data the whole array on the master, ignored on the other ranks
+	 * @return the master's array itself, or a newly received block elsewhere
+	 */
+	public double[] scatter(double[] data) throws MPIException {
+		if (myRank == root) {
+			int[] sendCounts = withoutRoot(counts);
+			comm.Scatterv(data, 0, sendCounts, displs, MPI.DOUBLE, data, 0, 0, MPI.DOUBLE, root);
+			return data;
+		}
+		double[] block = new double[counts[myRank]];
+		// the send buffer is only significant at the root
+		comm.Scatterv(block, 0, counts, displs, MPI.DOUBLE, block, 0, block.length, MPI.DOUBLE, root);
+		return block;
+	}
+
+	/**
+	 * Collects every rank's block back into the master's array.
+	 *
+	 * @param block this rank's block (the master's own array on the master)
+	 * @param data  the whole array on the master, ignored on the other ranks
+	 */
+	public void gather(double[] block, double[] data) throws MPIException {
+		if (myRank == root) {
+			int[] recvCounts = withoutRoot(counts);
+			comm.Gatherv(data, 0, 0, MPI.DOUBLE, data, 0, recvCounts, displs, MPI.DOUBLE, root);
+		} else {
+			// the receive buffer is only significant at the root
+			comm.Gatherv(block, 0, block.length, MPI.DOUBLE, block, 0, counts, displs, MPI.DOUBLE, root);
+		}
+	}
+
+	/**
+	 * Maps count elements of array starting at offset, in place, using all the
+	 * cores of this node.
+	 */
+	public static void apply(double[] array, int offset, int count, DoubleUnaryOperator op) {
+		IntStream.range(offset, offset + count).parallel().forEach(i -> array[i] = op.applyAsDouble(array[i]));
+	}
+
+	/**
+	 * @return a copy of counts in which the root's entry is 0, so the root's
+	 *         block stays where it is instead of being sent to itself
+	 */
+	private int[] withoutRoot(int[] counts) {
+		int[] copy = counts.clone();
+		copy[root] = 0;
+		return copy;
+	}
+
+	public Intracomm comm() {
+		return comm;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public int root() {
+		return root;
+	}
+
+	/** @return offset of this rank's block in the array returned by scatter */
+	public int localOffset() {
+		return (myRank == root) ? displs[root] : 0;
+	}
+
+	/** @return #elements allocated to this rank */
+	public int localCount() {
+		return counts[myRank];
+	}
+
+	/** @return #elements allocated to the given rank */
+	public int count(int rank) {
+		return counts[rank];
+	}
+
+	/** @return offset of the given rank's block in the whole array */
+	public int displacement(int rank) {
+		return displs[rank];
+	}
+}
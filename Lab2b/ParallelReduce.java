@@ -0,0 +1,196 @@
+/**
+ * ParallelReduce.java:<p>
+ * reductions and prefix scans over a double[] distributed by ParallelMap.
+ *
+ * Every operation works on the blocks each rank already holds after
+ * ParallelMap.scatter() (or map()), so nothing is gathered to the master.
+ * Each rank first reduces its own block with a plain indexed loop that keeps
+ * several independent accumulators (no boxing, no streams, no allocation per
+ * element, and no loop-carried dependency on a single register), then the
+ * per-rank partial results are combined with MPI's Allreduce/Scan, which MPICH
+ * performs as a tree (log2 #ranks steps) rather than a linear loop at rank 0.
+ * All results are returned on every rank.
+ *
+ * @author  Joshua Landron
+ * @version 19Oct2026
+ */
+import mpi.*; // for mpiJava
+
+public class ParallelReduce {
+	private final Intracomm comm;
+	private final ParallelMap layout; // block decomposition shared with the map
+	private final int offset; // where this rank's block starts in its array
+	private final int count; // #elements in this rank's block
+
+	// one-element send/receive buffers reused by every collective call
+	private final double[] dSend = new double[1];
+	private final double[] dRecv = new double[1];
+
+	/**
+	 * @param layout the decomposition the array was scattered with
+	 */
+	public ParallelReduce(ParallelMap layout) {
+		this.comm = layout.comm();
+		this.layout = layout;
+		this.offset = layout.localOffset();
+		this.count = layout.localCount();
+	}
+
+	/**
+	 * @param block the array returned by ParallelMap.scatter() or map()
+	 * @return the sum of the whole distributed array
+	 */
+	public double sum(double[] block) throws MPIException {
+		return allreduce(sum(block, offset, count), MPI.SUM);
+	}
+
+	/**
+	 * @param block the array returned by ParallelMap.scatter() or map()
+	 * @return the smallest element of the whole distributed array, or
+	 *         +Infinity if it is empty
+	 */
+	public double min(double[] block) throws MPIException {
+		return allreduce(min(block, offset, count), MPI.MIN);
+	}
+
+	/**
+	 * @param block the array returned by ParallelMap.scatter() or map()
+	 * @return the largest element of the whole distributed array, or -Infinity
+	 *         if it is empty
+	 */
+	public double max(double[] block) throws MPIException {
+		return allreduce(max(block, offset, count), MPI.MAX);
+	}
+
+	/**
+	 * Counts the elements of the whole distributed array that fall into each of
+	 * bins equal-width bins over [lo, hi). Elements below lo go to the first
+	 * bin, elements at or above hi go to the last one.
+	 *
+	 * @param block the array returned by ParallelMap.scatter() or map()
+	 * @return the global count of each bin
+	 */
+	public long[] histogram(double[] block, double lo, double hi, int bins) throws MPIException {
+		long[] local = new long[bins];
+		histogram(block, offset, count, lo, hi, local);
+		long[] global = new long[bins];
+		comm.Allreduce(local, 0, global, 0, bins, MPI.LONG, MPI.SUM);
+		return global;
+	}
+
+	/**
+	 * Replaces each element of the distributed array with the sum of itself
+	 * and every element before it (an inclusive prefix sum), in place. Each
+	 * rank scans its own block, one Scan over the block totals gives each rank
+	 * the sum of all the blocks before it, and that offset is added locally.
+	 *
+	 * @param block the array returned by ParallelMap.scatter() or map()
+	 */
+	public void prefixSum(double[] block) throws MPIException {
+		double total = prefixSum(block, offset, count);
+		dSend[0] = total;
+		comm.Scan(dSend, 0, dRecv, 0, 1, MPI.DOUBLE, MPI.SUM);
+		double before = dRecv[0] - total; // exclusive: the blocks of lower ranks
+		if (before != 0.0) {
+			for (int i = offset; i < offset + count; i++) {
+				block[i] += before;
+			}
+		}
+	}
+
+	public ParallelMap layout() {
+		return layout;
+	}
+
+	/**
+	 * Combines one partial result from each rank.
+	 */
+	private double allreduce(double partial, Op op) throws MPIException {
+		dSend[0] = partial;
+		comm.Allreduce(dSend, 0, dRecv, 0, 1, MPI.DOUBLE, op);
+		return dRecv[0];
+	}
+
+	// ------------------------------ per-rank kernels ------------------------------
+
+	/**
+	 * @return the sum of array[offset] through to array[offset + count - 1]
+	 */
+	public static double sum(double[] array, int offset, int count) {
+		double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+		int end = offset + count;
+		int i = offset;
+		for (; i + 3 < end; i += 4) { // four independent accumulators
+			s0 += array[i];
+			s1 += array[i + 1];
+			s2 += array[i + 2];
+			s3 += array[i + 3];
+		}
+		for (; i < end; i++) {
+			s0 += array[i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * @return the smallest of array[offset] through to array[offset + count - 1]
+	 */
+	public static double min(double[] array, int offset, int count) {
+		double m0 = Double.POSITIVE_INFINITY, m1 = Double.POSITIVE_INFINITY;
+		int end = offset + count;
+		int i = offset;
+		for (; i + 1 < end; i += 2) {
+			m0 = Math.min(m0, array[i]);
+			m1 = Math.min(m1, array[i + 1]);
+		}
+		for (; i < end; i++) {
+			m0 = Math.min(m0, array[i]);
+		}
+		return Math.min(m0, m1);
+	}
+
+	/**
+	 * @return the largest of array[offset] through to array[offset + count - 1]
+	 */
+	public static double max(double[] array, int offset, int count) {
+		double m0 = Double.NEGATIVE_INFINITY, m1 = Double.NEGATIVE_INFINITY;
+		int end = offset + count;
+		int i = offset;
+		for (; i + 1 < end; i += 2) {
+			m0 = Math.max(m0, array[i]);
+			m1 = Math.max(m1, array[i + 1]);
+		}
+		for (; i < end; i++) {
+			m0 = Math.max(m0, array[i]);
+		}
+		return Math.max(m0, m1);
+	}
+
+	/**
+	 * Adds the elements array[offset] through to array[offset + count - 1] to
+	 * the given bins, which cover [lo, hi) in equal widths.
+	 */
+	public static void histogram(double[] array, int offset, int count, double lo, double hi, long[] bins) {
+		int last = bins.length - 1;
+		double scale = bins.length / (hi - lo);
+		for (int i = offset; i < offset + count; i++) {
+			int bin = (int) ((array[i] - lo) * scale);
+			bins[Math.max(0, Math.min(last, bin))]++; // clamp out-of-range values
+		}
+	}
+
+	/**
+	 * Computes an inclusive prefix sum of array[offset] through to
+	 * array[offset + count - 1] in place.
+	 *
+	 * @return the sum of the whole range
+	 */
+	public static double prefixSum(double[] array, int offset, int count) {
+		double running = 0.0;
+		for (int i = offset; i < offset + count; i++) {
+			running += array[i];
+			array[i] = running;
+		}
+		return running;
+	}
+}
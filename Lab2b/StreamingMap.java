@@ -0,0 +1,211 @@
+/**
+ * StreamingMap.java:<p>
+ * applies an element-wise map to a file of doubles that may be far larger
+ * than the master's memory.
+ *
+ * The input file holds raw big-endian doubles (as written by DataOutputStream).
+ * The master reads it one fixed-size chunk at a time, with positional reads
+ * into one reused buffer, and deals the chunks out to the slaves round-robin,
+ * one chunk per slave per round. Every buffer is doubled: while the slaves
+ * compute round r, the master already has round r + 1 in flight with Isend,
+ * and is writing the results of round r - 1 to the output file. Each slave
+ * likewise receives its next chunk into its second buffer while it computes
+ * the first one, so computation overlaps transfer on both sides. Only
+ * 4 * #slaves chunks (two banks each way) and the file buffer are ever held in
+ * memory on the master.
+ *
+ * With a single rank there is nobody to stream to, and the master maps each
+ * chunk through one buffer.
+ *
+ * @author  Joshua Landron
+ * @version 19Oct2026
+ */
+import mpi.*; // for mpiJava
+import java.io.*; // for RandomAccessFile
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.DoubleUnaryOperator;
+
+public class StreamingMap {
+	final static int tagData = 1; // a chunk to compute, or its result
+	final static int tagEnd = 2; // no more chunks
+	final static int master = 0;
+	final static int doubleSize = 8; // bytes per element in the files
+
+	private final Intracomm comm;
+	private final int myRank;
+	private final int chunk; // #elements per chunk
+	private ByteBuffer io; // one chunk of the files, reused for every read and write
+
+	/**
+	 * @param comm  communicator the map runs over, usually MPI.COMM_WORLD
+	 * @param chunk #elements sent to a slave at once
+	 */
+	public StreamingMap(Intracomm comm, int chunk) throws MPIException {
+		this.comm = comm;
+		this.myRank = comm.Rank();
+		this.chunk = chunk;
+	}
+
+	/**
+	 * Reads n doubles from the file, starting at element first.
+	 */
+	private void read(FileChannel in, long first, double[] buf, int n) throws IOException {
+		io.clear().limit(n * doubleSize);
+		while (io.hasRemaining()) {
+			if (in.read(io, first * doubleSize + io.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		io.flip();
+		io.asDoubleBuffer().get(buf, 0, n);
+	}
+
+	/**
+	 * Writes n doubles to the file, starting at element first.
+	 */
+	private void write(FileChannel out, long first, double[] buf, int n) throws IOException {
+		io.clear();
+		io.asDoubleBuffer().put(buf, 0, n);
+		io.limit(n * doubleSize);
+		while (io.hasRemaining()) {
+			out.write(io, first * doubleSize + io.position());
+		}
+	}
+
+	/**
+	 * Runs the streaming map. Every rank must call this; only the master uses
+	 * the file names.
+	 *
+	 * @param input  the file of doubles to read
+	 * @param output the file the mapped doubles are written to
+	 * @param op     the operator applied to each element
+	 * @return #elements processed (on the master), 0 elsewhere
+	 */
+	public long map(String input, String output, DoubleUnaryOperator op) throws MPIException, IOException {
+		if (myRank != master) {
+			slave(op);
+			return 0;
+		}
+		try (RandomAccessFile in = new RandomAccessFile(input, "r");
+				RandomAccessFile out = new RandomAccessFile(output, "rw")) {
+			long length = in.length() / doubleSize;
+			out.setLength(length * doubleSize);
+			io = ByteBuffer.allocateDirect(chunk * doubleSize);
+			if (comm.Size() == 1) {
+				local(in.getChannel(), out.getChannel(), length, op);
+			} else {
+				master(in.getChannel(), out.getChannel(), length);
+			}
+			return length;
+		}
+	}
+
+	/**
+	 * The master: reads chunks, streams them to the slaves, and writes back
+	 * their results.
+	 */
+	private void master(FileChannel in, FileChannel out, long length) throws MPIException, IOException {
+		int slaves = comm.Size() - 1;
+		long chunks = (length + chunk - 1) / chunk;
+		long rounds = (chunks + slaves - 1) / slaves;
+
+		// [bank][slave] where bank alternates between rounds
+		double[][][] sendBuf = new double[2][slaves][chunk];
+		double[][][] recvBuf = new double[2][slaves][chunk];
+		Request[][] sends = new Request[2][slaves];
+		Request[][] recvs = new Request[2][slaves];
+		int[][] sizes = new int[2][slaves]; // #elements in each buffer, 0 if unused
+
+		for (long r = 0; r <= rounds; r++) {
+			int bank = (int) (r % 2);
+			if (r < rounds) {
+				// start round r while the slaves are still working on round r - 1
+				for (int s = 0; s < slaves; s++) {
+					if (sends[bank][s] != null) {
+						sends[bank][s].Wait(); // round r - 2 has left this buffer
+					}
+					long first = (r * slaves + s) * chunk;
+					int n = (int) Math.max(0, Math.min(chunk, length - first));
+					sizes[bank][s] = n;
+					if (n == 0) {
+						sends[bank][s] = null;
+						recvs[bank][s] = null;
+						continue;
+					}
+					read(in, first, sendBuf[bank][s], n);
+					sends[bank][s] = comm.Isend(sendBuf[bank][s], 0, n, MPI.DOUBLE, s + 1, tagData);
+					recvs[bank][s] = comm.Irecv(recvBuf[bank][s], 0, n, MPI.DOUBLE, s + 1, tagData);
+				}
+			}
+			if (r > 0) {
+				// collect round r - 1 while round r is being computed
+				int prev = 1 - bank;
+				for (int s = 0; s < slaves; s++) {
+					int n = sizes[prev][s];
+					if (n == 0) {
+						continue;
+					}
+					recvs[prev][s].Wait();
+					long first = ((r - 1) * slaves + s) * chunk;
+					write(out, first, recvBuf[prev][s], n);
+				}
+			}
+		}
+		// tell every slave that there are no more chunks
+		for (int s = 0; s < slaves; s++) {
+			for (int bank = 0; bank < 2; bank++) {
+				if (sends[bank][s] != null) {
+					sends[bank][s].Wait();
+				}
+			}
+			comm.Send(sendBuf[0][s], 0, 0, MPI.DOUBLE, s + 1, tagEnd);
+		}
+	}
+
+	/**
+	 * A slave: computes chunks until the master says there are no more,
+	 * receiving the next chunk while computing the current one.
+	 */
+	private void slave(DoubleUnaryOperator op) throws MPIException {
+		double[][] buf = new double[2][chunk];
+		Request[] sends = new Request[2];
+		Request[] recvs = new Request[2];
+		recvs[0] = comm.Irecv(buf[0], 0, chunk, MPI.DOUBLE, master, MPI.ANY_TAG);
+		for (int k = 0;; k++) {
+			int cur = k % 2;
+			int next = 1 - cur;
+			Status status = recvs[cur].Wait();
+			if (status.tag == tagEnd) {
+				break;
+			}
+			int n = status.Get_count(MPI.DOUBLE);
+			// prefetch the next chunk into the other buffer once its result is out
+			if (sends[next] != null) {
+				sends[next].Wait();
+			}
+			recvs[next] = comm.Irecv(buf[next], 0, chunk, MPI.DOUBLE, master, MPI.ANY_TAG);
+
+			ParallelMap.apply(buf[cur], 0, n, op);
+			sends[cur] = comm.Isend(buf[cur], 0, n, MPI.DOUBLE, master, tagData);
+		}
+		for (int i = 0; i < 2; i++) {
+			if (sends[i] != null) {
+				sends[i].Wait();
+			}
+		}
+	}
+
+	/**
+	 * Single rank: maps each chunk of the input straight into the output.
+	 */
+	private void local(FileChannel in, FileChannel out, long length, DoubleUnaryOperator op) throws IOException {
+		double[] buf = new double[chunk];
+		for (long first = 0; first < length; first += chunk) {
+			int n = (int) Math.min(chunk, length - first);
+			read(in, first, buf, n);
+			ParallelMap.apply(buf, 0, n, op);
+			write(out, first, buf, n);
+		}
+	}
+}
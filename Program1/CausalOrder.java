@@ -0,0 +1,171 @@
+/**
+ * CausalOrder.java:<p>
+ * delivers broadcast messages in causal order using vector clocks.
+ *
+ * A message from sender s stamped with vector V can be delivered once
+ * V[s] == clock[s] + 1 (it is the next message from s) and V[j] <= clock[j]
+ * for every other member j (everything s had seen before sending it has been
+ * delivered here too). Messages that arrive early are held back:
+ *
+ * <ul>
+ * <li>per sender, in a map keyed by their sequence number V[s], so only the
+ * next message from each sender is ever looked at;
+ * <li>once that next message is only missing messages from some member j, it
+ * is parked under j with the clock value it needs, and is looked at again
+ * only when clock[j] reaches exactly that value.
+ * </ul>
+ *
+ * Each delivery therefore costs O(#members) for the clock comparison no matter
+ * how many messages are held back, and deliveries cascade through a work list
+ * instead of rescanning everything pending.
+ *
+ * @author  Joshua Landron
+ * @version 19Oct2026
+ */
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class CausalOrder<T> {
+	/**
+	 * Receives each message once it is causally deliverable.
+	 */
+	public interface Listener<T> {
+		void deliver(int sender, T message);
+	}
+
+	/**
+	 * A held-back message.
+	 */
+	private static class Pending<T> {
+		final int sender;
+		final int[] stamps;
+		final T message;
+		int checked = 0; // members below this index are known to be satisfied
+
+		Pending(int sender, int[] stamps, T message) {
+			this.sender = sender;
+			this.stamps = stamps;
+			this.message = message;
+		}
+	}
+
+	private final int self; // my own rank
+	private final int[] clock; // #messages delivered from each member
+	private final Listener<T> listener;
+
+	// messages from sender s that are not yet next in line, keyed by V[s]
+	private final ArrayList<HashMap<Integer, Pending<T>>> early = new ArrayList<>();
+	// the next message of some sender, waiting for clock[j] to reach the key
+	private final ArrayList<HashMap<Integer, ArrayList<Pending<T>>>> blocked = new ArrayList<>();
+	private final boolean[] parked; // the next message of sender s is in blocked
+	private int held = 0; // #messages held back in total
+
+	/**
+	 * @param members  #chat members
+	 * @param self     this local node's rank
+	 * @param listener called for each message as it becomes deliverable
+	 */
+	public CausalOrder(int members, int self, Listener<T> listener) {
+		this.self = self;
+		this.clock = new int[members];
+		this.listener = listener;
+		this.parked = new boolean[members];
+		for (int i = 0; i < members; i++) {
+			early.add(new HashMap<>());
+			blocked.add(new HashMap<>());
+		}
+	}
+
+	/**
+	 * Advances the local clock for a message this node is about to broadcast.
+	 *
+	 * @return a copy of the clock to send along with the message
+	 */
+	public int[] stamp() {
+		clock[self]++;
+		return clock.clone();
+	}
+
+	/**
+	 * Accepts a message from another member and delivers it, along with every
+	 * held-back message it unblocks, as soon as causal order allows.
+	 *
+	 * @param sender the member that broadcast the message
+	 * @param stamps the sender's vector clock when it broadcast the message
+	 * @param message the message itself
+	 */
+	public void receive(int sender, int[] stamps, T message) {
+		int seq = stamps[sender];
+		if (seq <= clock[sender] || (seq == clock[sender] + 1 && parked[sender])
+				|| early.get(sender).containsKey(seq)) {
+			return; // already delivered or already held back: a duplicate
+		}
+		Pending<T> p = new Pending<>(sender, stamps, message);
+		held++;
+		if (seq == clock[sender] + 1) {
+			drain(p);
+		} else {
+			early.get(sender).put(seq, p);
+		}
+	}
+
+	/**
+	 * Tries to deliver p, then every message its delivery makes ready.
+	 */
+	private void drain(Pending<T> first) {
+		ArrayDeque<Pending<T>> ready = new ArrayDeque<>();
+		ready.add(first);
+		while (!ready.isEmpty()) {
+			Pending<T> p = ready.poll();
+			int missing = firstUnsatisfied(p);
+			if (missing >= 0) {
+				// park it until clock[missing] reaches what it needs
+				blocked.get(missing).computeIfAbsent(p.stamps[missing], k -> new ArrayList<>()).add(p);
+				parked[p.sender] = true;
+				continue;
+			}
+			int s = p.sender;
+			parked[s] = false;
+			clock[s]++;
+			held--;
+			listener.deliver(s, p.message);
+
+			// the next message from the same sender may now be in line
+			Pending<T> next = early.get(s).remove(clock[s] + 1);
+			if (next != null) {
+				ready.add(next);
+			}
+			// and anything that was waiting for exactly this clock value
+			ArrayList<Pending<T>> waiting = blocked.get(s).remove(clock[s]);
+			if (waiting != null) {
+				ready.addAll(waiting);
+			}
+		}
+	}
+
+	/**
+	 * @return the first member whose messages p still depends on, or -1 if p
+	 *         (already next in line from its sender) can be delivered
+	 */
+	private int firstUnsatisfied(Pending<T> p) {
+		// clocks only grow, so members checked before stay satisfied
+		for (; p.checked < clock.length; p.checked++) {
+			int j = p.checked;
+			if (j != p.sender && p.stamps[j] > clock[j]) {
+				return j;
+			}
+		}
+		return -1;
+	}
+
+	/** @return #messages received but not yet delivered */
+	public int held() {
+		return held;
+	}
+
+	/** @return a copy of the current vector clock */
+	public int[] clock() {
+		return clock.clone();
+	}
+}
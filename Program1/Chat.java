@@ -1,179 +1,369 @@
 import java.net.*; // ServerSocket, Socket
-import java.util.ArrayList;
-import java.io.*; // InputStream, ObjectInputStream, ObjectOutputStream
+import java.io.*; // IOException, BufferedReader
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.*; // Selector, SelectionKey, ServerSocketChannel, SocketChannel
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class Chat {
-	// Each element i of the follwoing arrays represent a chat member[i]
-	private Socket[] sockets = null; // connection to i
-	private InputStream[] indata = null; // used to check data from i
-	private ObjectInputStream[] inputs = null; // a message from i
-	private ObjectOutputStream[] outputs = null; // a message to i
-	private int[] stamps = null;
+	final static long CONNECT_TIMEOUT = 60000; // msec to wait for every neighbor
+
+	// Each element i of the follwoing array represent a chat member[i]
+	private PeerChannel[] peers = null; // connection to i
+	private Selector selector = null; // waits for any peer or the keyboard
+	private String[] hosts = null;
+	private int rank;
+	private CausalOrder<String> order = null;
+	private Options options = null;
+	private Overlay overlay = null; // who to connect to and whether to relay
+
+	// lines typed by the local user, handed over by the keyboard thread
+	private final ConcurrentLinkedQueue<String> typed = new ConcurrentLinkedQueue<>();
+	private volatile boolean keyboardClosed = false;
+
+	// throughput of the messages delivered from the others
+	private long delivered = 0;
+	private long deliveredChars = 0; // UTF-16 chars, not the bytes on the wire
+	private long startTime = 0; // System.nanoTime() of the first message sent or delivered
+
+	/**
+	 * The command-line options of a Chat member.
+	 */
+	static class Options {
+		boolean delta = false; // send only the clock entries that changed
+		String overlay = "mesh"; // see Overlay.parse()
+		int rank = -1; // my rank, -1 to find it from my hostname
+		int batch = 64 * 1024; // #bytes written to a peer as soon as they are queued
+		long linger = 0; // msec a message may wait for others to be written with it
+		String script = null; // a file to read the messages from instead of the keyboard
+		long expect = 0; // #messages to deliver from the others before exiting
+		boolean quiet = false; // do not print the messages delivered
+		boolean echo = false; // print my own messages too, as they are broadcast
+
+		/**
+		 * Retrieves the options at the start of args.
+		 *
+		 * @return the index of the first argument that is not an option
+		 */
+		int parse(String[] args) {
+			int i = 0;
+			for (; i < args.length && args[i].startsWith("-"); i++) {
+				boolean more = i + 1 < args.length;
+				if (args[i].equals("-delta"))
+					delta = true;
+				else if (args[i].equals("-quiet"))
+					quiet = true;
+				else if (args[i].equals("-echo"))
+					echo = true;
+				else if (args[i].equals("-overlay") && more)
+					overlay = args[++i];
+				else if (args[i].equals("-rank") && more)
+					rank = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-batch") && more)
+					batch = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-linger") && more)
+					linger = Long.parseLong(args[++i]);
+				else if (args[i].equals("-script") && more)
+					script = args[++i];
+				else if (args[i].equals("-expect") && more)
+					expect = Long.parseLong(args[++i]);
+				else
+					throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+			return i;
+		}
+	}
 
 	/**
 	 * Is the main body of the Chat application. This constructor establishes a
 	 * socket to each remote chat member, broadcasts a local user's message to all
 	 * the remote chat members, and receive a message from each of them.
 	 *
+	 * All the sockets and the keyboard are served by one thread blocked in a
+	 * Selector, so an idle chat uses no CPU and a message is handled as soon as
+	 * it arrives.
+	 *
 	 * @param port  IP port used to connect to a remote node as well as to accept a
 	 *              connection from a remote node.
 	 * @param rank  this local node's rank (one of 0 through to #members - 1)
 	 * @param hosts a list of all computing nodes that participate in chatting
+	 * @param options how to stamp, spread and batch messages
 	 */
-	public Chat(int port, int rank, String[] hosts) throws IOException {
+	public Chat(int port, int rank, String[] hosts, Options options) throws IOException {
+		this.hosts = hosts;
+		this.rank = rank;
+		this.options = options;
+		this.overlay = Overlay.parse(options.overlay, hosts.length, rank);
 
 		// print out my port, rank and local hostname
 		System.out.println("port = " + port + ", rank = " + rank + ", localhost = " + hosts[rank]);
 
-		// create sockets, inputs, outputs, and vector arrays
-		sockets = new Socket[hosts.length];
-		indata = new InputStream[hosts.length];
-		inputs = new ObjectInputStream[hosts.length];
-		outputs = new ObjectOutputStream[hosts.length];
+		// establish a connection to each of my neighbors in the overlay, all
+		// at the same time
+		InetSocketAddress[] addresses = new InetSocketAddress[hosts.length];
+		for (int i = 0; i < hosts.length; i++)
+			addresses[i] = address(hosts[i], port);
+		peers = PeerConnector.connect(rank, addresses, overlay.neighbors(), CONNECT_TIMEOUT);
 
-		stamps = new int[hosts.length]; // establish array to keep track of stamps
-		for (int i = 0; i < stamps.length; i++) {
-			stamps[i] = 0;
-		}
-		// establish a complete network
-		ServerSocket server = new ServerSocket(port);
-		for (int i = hosts.length - 1; i >= 0; i--) {
-			if (i > rank) {
-				// accept a connection from others with a higher rank
-				Socket socket = server.accept();
-				String src_host = socket.getInetAddress().getHostName();
-
-				// find this source host's rank
-				for (int j = 0; j < hosts.length; j++)
-					if (src_host.startsWith(hosts[j])) {
-						// j is this source host's rank
-						System.out.println("accepted from " + src_host);
-
-						// store this source host j's connection, input stream
-						// and object intput/output streams.
-						sockets[j] = socket;
-						indata[j] = socket.getInputStream();
-						inputs[j] = new ObjectInputStream(indata[j]);
-						outputs[j] = new ObjectOutputStream(socket.getOutputStream());
-					}
-			}
-			if (i < rank) {
-				// establish a connection to others with a lower rank
-				sockets[i] = new Socket(hosts[i], port);
-				System.out.println("connected to " + hosts[i]);
-
-				// store this destination host j's connection, input stream
-				// and object intput/output streams.
-				outputs[i] = new ObjectOutputStream(sockets[i].getOutputStream());
-				indata[i] = sockets[i].getInputStream();
-				inputs[i] = new ObjectInputStream(indata[i]);
+		// serve every peer from a single selector
+		selector = Selector.open();
+		for (PeerChannel peer : peers)
+			if (peer != null) {
+				peer.batching(options.batch, options.linger);
+				peer.register(selector);
 			}
-		}
 
-		// create a keyboard stream
-		BufferedReader keyboard = new BufferedReader(new InputStreamReader(System.in));
-		ArrayList<String> wStrings = new ArrayList<>();
-		ArrayList<int[]> wStampStack = new ArrayList<>();
+		// deliver messages from the other members in causal order
+		order = new CausalOrder<>(hosts.length, rank, this::deliver);
+
+		startKeyboard(options.script == null ? System.in : new FileInputStream(options.script));
+
 		// now goes into a chat
-		while (true) {
-			// read a message from keyboard and broadcast it to all the others.
-			if (keyboard.ready()) {
-				// since keyboard is ready, read one line.
-				String message = keyboard.readLine();
-				if (message == null) {
-					// keyboard was closed by "^d"
-					break; // terminate the program
+		long wait = 0; // msec until a batch is due, 0 if none is waiting
+		while (!keyboardClosed || !typed.isEmpty() || delivered < options.expect) {
+			selector.select(wait); // sleeps until a peer or the keyboard has something
+			for (SelectionKey key : selector.selectedKeys()) {
+				PeerChannel peer = (PeerChannel) key.attachment();
+				try {
+					if (key.isValid() && key.isWritable())
+						peer.flush();
+					if (key.isValid() && key.isReadable() && !peer.read(this::receive))
+						leave(peer);
+				} catch (IOException e) {
+					e.printStackTrace();
+					leave(peer);
 				}
-				// broadcast a message to each of the chat members.
-				stamps[rank]++;
-				for (int i = 0; i < hosts.length; i++)
-					if (i != rank) {
-						// of course I should not send a message to myself
-
-						outputs[i].writeObject(stamps);
-						outputs[i].flush();
-						outputs[i].writeObject(message);
-						outputs[i].flush(); // make sure the message was sent
-					}
 			}
+			selector.selectedKeys().clear();
 
-			// read a message from each of the chat members
-			for (int i = 0; i < hosts.length; i++) {
-				// to intentionally create a misordered message deliveray,
-				// let's slow down the chat member #2.
+			// broadcast whatever the local user typed
+			String message;
+			while ((message = typed.poll()) != null)
+				broadcast(message);
+
+			// write the batches that are full or have lingered long enough
+			wait = flushDue();
+		}
+		if (options.expect > 0)
+			report();
+		// keyboard was closed by "^d": let the last messages go out
+		finish();
+	}
+
+	/**
+	 * @param host "host" or "host:port"
+	 * @param port the port to use if host does not name one
+	 * @return where the member named by host accepts connections
+	 */
+	static InetSocketAddress address(String host, int port) {
+		int colon = host.lastIndexOf(':');
+		if (colon >= 0)
+			return new InetSocketAddress(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1)));
+		return new InetSocketAddress(host, port);
+	}
+
+	/**
+	 * Writes each peer's queued messages if they are due.
+	 *
+	 * @return msec until the next batch is due, 0 if nothing is queued
+	 */
+	private long flushDue() {
+		long now = System.nanoTime();
+		long next = Long.MAX_VALUE;
+		for (PeerChannel peer : peers)
+			if (peer != null) {
 				try {
-					if (rank == 2)
-						Thread.currentThread().sleep(5000); // sleep 5 sec.
-				} catch (InterruptedException e) {
+					if (peer.due(now) <= 0)
+						peer.flush();
+				} catch (IOException e) {
+					e.printStackTrace();
+					leave(peer);
+					continue;
 				}
-				// check if there are messages waiting that were not printed
-				if (!wStrings.isEmpty()) {
-					for (int list = 0; list < wStrings.size(); list++) { // iterate through any waiting messages
-						for (int j = 0; j < stamps.length; j++) {
-							if (((i == j) && (wStampStack.get(list)[i] == (stamps[i] + 1))) // j is the sender
-									|| ((i != j) && (wStampStack.get(list)[j] <= stamps[j]))) { // j is not the sender
-								// if crieteria are now met, print the message, and remove it from the holding
-								// list
-								System.out.println(hosts[i] + ": " + wStrings.get(list));
-								stamps[i]++;
-								wStampStack.remove(list);
-								wStrings.remove(list);
-								list--;
-								if (wStrings.isEmpty()) {
-									break;
-								}
-							}
-						}
-					}
+				next = Math.min(next, peer.due(now));
+			}
+		if (next == Long.MAX_VALUE)
+			return 0;
+		return Math.max(1, (next + 999999) / 1000000);
+	}
+
+	/**
+	 * Prints a message from another member once it is causally deliverable.
+	 */
+	private void deliver(int sender, String message) {
+		if (startTime == 0)
+			startTime = System.nanoTime();
+		delivered++;
+		deliveredChars += message.length();
+		if (!options.quiet)
+			System.out.println(hosts[sender] + ": " + message);
+	}
+
+	/**
+	 * Prints how fast the messages from the others were delivered.
+	 */
+	private void report() {
+		double seconds = Math.max(1, System.nanoTime() - startTime) / 1e9;
+		System.out.printf("delivered %d messages (%d chars) in %.3f sec: %.0f msg/sec, %.2f Mchars/sec%n", delivered,
+				deliveredChars, seconds, delivered / seconds, deliveredChars / seconds / 1e6);
+	}
+
+	/**
+	 * Reads the keyboard (or a script) on its own thread and hands each line to
+	 * the event loop, waking it up.
+	 */
+	private void startKeyboard(InputStream input) {
+		Thread keyboard = new Thread(() -> {
+			BufferedReader in = new BufferedReader(new InputStreamReader(input));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					typed.add(line);
+					selector.wakeup();
 				}
-				// check if chat member #i has something
-				if (i != rank && indata[i].available() > 0) {
-					// read a message from chat member #i and print it out
-					// to the monitor
-					try {
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			keyboardClosed = true;
+			selector.wakeup();
+		}, "keyboard");
+		keyboard.setDaemon(true);
+		keyboard.start();
+	}
 
-						int[] sentStamps = (int[]) inputs[i].readObject();
-						String message = (String) inputs[i].readObject();
-
-						boolean print = true;
-						for (int j = 0; j < stamps.length; j++) {
-							if (i == j) { // recive data e.g. [0 0 0 1] if i == 3
-								if (sentStamps[i] != (stamps[i] + 1)) {
-									print = false;
-								}
-							} else {
-								if (sentStamps[j] > stamps[j]) {
-									print = false;
-								}
-							}
-						}
-						if (print) {
-							System.out.println(hosts[i] + ": " + message);
-							stamps[i]++;
-						} else {
-							wStrings.add(message);
-							wStampStack.add(sentStamps);
-						}
-					} catch (ClassNotFoundException e) {
-					}
+	/**
+	 * Broadcasts a message to each of the chat members.
+	 */
+	private void broadcast(String message) {
+		if (startTime == 0)
+			startTime = System.nanoTime();
+		if (options.echo)
+			System.out.println(hosts[rank] + ": " + message);
+		byte[] text = message.getBytes(StandardCharsets.UTF_8);
+		send(rank, order.stamp(), text, null, null);
+	}
+
+	/**
+	 * Writes a message to every neighbor except the one it came from.
+	 *
+	 * @param origin the member that broadcast the message
+	 * @param from   the neighbor it was received from, or null for my own
+	 * @param frame  the message already encoded as a full MESSAGE frame, or null
+	 */
+	private void send(int origin, int[] stamps, byte[] text, PeerChannel from, ByteBuffer frame) {
+		// a full clock is the same for everybody, so encode it only once
+		boolean delta = options.delta;
+		if (!delta && frame == null)
+			frame = ChatWire.encode(origin, stamps, text);
+		for (PeerChannel peer : peers)
+			// of course I should not send a message to myself
+			if (peer != null && peer != from) {
+				try {
+					peer.send(delta ? ChatWire.encodeDelta(origin, stamps, peer.lastSent, text) : frame.duplicate());
+				} catch (IOException e) {
+					e.printStackTrace();
+					leave(peer);
 				}
 			}
+	}
+
+	/**
+	 * Hands a message read from a chat member to the causal ordering, which
+	 * prints it once it is deliverable, and relays it if the overlay says so.
+	 */
+	private void receive(PeerChannel peer, ByteBuffer payload) throws IOException {
+		ByteBuffer raw = payload.duplicate();
+		ChatWire.Message message = ChatWire.decode(payload, peer.lastReceived);
+		if (overlay.relays()) {
+			ByteBuffer frame = null;
+			if (!options.delta && raw.get(raw.position()) == ChatWire.MESSAGE) {
+				// pass the frame on exactly as it came in
+				frame = ByteBuffer.allocate(ChatWire.varintSize(raw.remaining()) + raw.remaining());
+				ChatWire.writeVarint(frame, raw.remaining());
+				frame.put(raw);
+				frame.flip();
+			}
+			send(message.origin, message.stamps, message.text.getBytes(StandardCharsets.UTF_8), peer, frame);
 		}
+		order.receive(message.origin, message.stamps, message.text);
+	}
+
+	/**
+	 * Drops a member whose connection has closed or failed.
+	 */
+	private void leave(PeerChannel peer) {
+		if (peers[peer.rank] == peer) {
+			System.out.println(hosts[peer.rank] + " left");
+			peers[peer.rank] = null;
+			peer.close();
+		}
+	}
+
+	/**
+	 * Waits until every queued message has been written, then closes the
+	 * connections.
+	 */
+	private void finish() throws IOException {
+		boolean pending = true;
+		while (pending) {
+			pending = false;
+			for (PeerChannel peer : peers)
+				if (peer != null && peer.pending()) {
+					try {
+						peer.flush();
+						pending |= peer.pending();
+					} catch (IOException e) {
+						leave(peer);
+					}
+				}
+			if (pending)
+				selector.select(100);
+			selector.selectedKeys().clear();
+		}
+		for (PeerChannel peer : peers)
+			if (peer != null)
+				peer.close();
+		selector.close();
 	}
 
 	/**
 	 * Is the main function that verifies the correctness of its arguments and
 	 * starts the application.
 	 *
-	 * @param args receives <port> <ip1> <ip2> ... where port is an IP port to
-	 *             establish a TCP connection and ip1, ip2, .... are a list of all
-	 *             computing nodes that participate in a chat.
+	 * @param args receives [options] <port> <ip1> <ip2> ... where port is an IP
+	 *             port to establish a TCP connection and ip1, ip2, .... are a
+	 *             list of all computing nodes that participate in a chat. An ip
+	 *             may be given as ip:port to run several members on one node.
+	 *             The options are:
+	 *             <ul>
+	 *             <li>-rank r: which of the ips I am
+	 *             <li>-delta: send only the changed vector clock entries
+	 *             <li>-overlay mesh|tree[:k]: how messages spread
+	 *             <li>-batch bytes: write to a peer once this much is queued
+	 *             <li>-linger msec: how long a message may wait for others
+	 *             <li>-script file: read the messages from file, not the keyboard
+	 *             <li>-expect n: deliver n messages before exiting, then print
+	 *             the throughput
+	 *             <li>-quiet: do not print the messages delivered
+	 *             <li>-echo: print my own messages as they are broadcast
+	 *             </ul>
 	 */
 	public static void main(String[] args) {
 
+		// retrieve the options
+		Options options = new Options();
+		try {
+			args = Arrays.copyOfRange(args, options.parse(args), args.length);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(-1);
+		}
+
 		// verify #args.
 		if (args.length < 2) {
-			System.err.println("Syntax: java Chat <port> <ip1> <ip2> ...");
+			System.err.println("Syntax: java Chat [-rank r] [-delta] [-overlay mesh|tree[:k]] [-batch bytes] "
+					+ "[-linger msec] [-script file] [-expect n] [-quiet] [-echo] <port> <ip1>[:port] <ip2>[:port] ...");
 			System.exit(-1);
 		}
 
@@ -200,18 +390,26 @@ public class Chat {
 		}
 
 		// store a list of computing nodes in hosts[] and check my rank
-		int rank = -1;
+		int rank = options.rank;
 		String[] hosts = new String[args.length - 1];
 		for (int i = 0; i < args.length - 1; i++) {
 			hosts[i] = args[i + 1];
-			if (localhost.startsWith(hosts[i]))
+			int colon = hosts[i].lastIndexOf(':');
+			if (options.rank < 0 && localhost.startsWith(colon >= 0 ? hosts[i].substring(0, colon) : hosts[i]))
 				// found myself in the i-th member of hosts
 				rank = i;
 		}
+		if (rank < 0 || rank >= hosts.length) {
+			System.err.println("cannot find my rank: give it with -rank");
+			System.exit(-1);
+		}
 
 		// now start the Chat application
 		try {
-			new Chat(port, rank, hosts);
+			new Chat(port, rank, hosts, options);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(-1);
 		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(-1);
@@ -6,71 +6,47 @@
  * @author  Munehiro Fukuda (CSS, University of Washington, Bothell)
  * @author	Josh Landron, edited only for message clerity
  * @since   1/23/05
- * @version 4/12/19
+ * @version 10/19/26
  */
-import java.net.*; // for Socket
 import java.io.*; // for IOException
 
 public class ChatClient {
-	private Socket socket; // a socket connection to a chat server
-	private InputStream rawIn; // an input stream from the server
-	private DataInputStream in; // a filtered input stream from the server
-	private DataOutputStream out; // a filtered output stream to the server
-	private BufferedReader stdin; // the standart input
+	private ChatSession session; // the connection to the chat server
 
 	/**
-	 * Creates a socket, contacts to the server with a given server ip name and a
-	 * port, sends a given calling user name, and goes into a "while" loop in that:
-	 * <p>
+	 * Creates a ChatSession with a given server ip name and a port, which sends
+	 * a given calling user name, and forwards each line typed on the standard
+	 * input to the server until the user types ^d, while the session's reader
+	 * thread forwards each message from the server to the standard output.
+	 * Both threads block in their reads, so an idle client uses no CPU.
 	 *
-	 * <ol>
-	 * <li>forward a message from the standard input to the server
-	 * <li>forward a message from the server to the standard output
-	 * </ol>
+	 * The session asks the server to number the messages of its room. If the
+	 * connection is lost, it connects again, goes back to its room, and asks
+	 * for everything after the last message it saw, so nothing is missed as
+	 * long as the server still has it.
 	 *
 	 * @param name   the calling user name
 	 * @param server a server ip name
 	 * @param port   a server port
 	 */
-	public ChatClient(String name, String server, int port) {
-
-		// Create a scoket, register, and listen to the server
-		try {
-			// Connect to the server
-			socket = new Socket(server, port);
-			rawIn = socket.getInputStream();
-
-			// Create an input, an output, and the standard output stream.
-			in = new DataInputStream(rawIn);
-			out = new DataOutputStream(socket.getOutputStream());
-			stdin = new BufferedReader(new InputStreamReader(System.in));
-
-			// Send the client name to the server
-			out.writeUTF(name + " joined");
-			while (true) {
-				// If the user types something from the keyboard, read it from
-				// the standard input and simply forward it to the srever
-				if (stdin.ready()) {
-					String str = stdin.readLine();
-					// no more keyboard inputs: the user typed ^d.
-					if (str == null) {
-						break;
-					}
-					out.writeUTF(name + ": " + str);
-				}
-
-				// If the server gives me a message, read it from the server
-				// and write it down to the standard output.
-				if (rawIn.available() > 0) {
-					String str = in.readUTF();
-					System.out.println(str);
+	public ChatClient(String name, String server, int port) throws IOException, InterruptedException {
+		session = new ChatSession(name, server, port, System.out::println);
+		BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+		Thread console = new Thread(() -> {
+			try {
+				String str;
+				// no more keyboard inputs: the user typed ^d.
+				while ((str = stdin.readLine()) != null) {
+					session.publish(str);
 				}
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
 			}
-			// Close the connection. That's it.
-			socket.close();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+			session.close();
+		}, "chat-client-console");
+		console.setDaemon(true); // it may still be blocked in readLine()
+		console.start();
+		session.awaitClose();
 	}
 
 	/**
@@ -90,6 +66,10 @@ public class ChatClient {
 		int port = Integer.parseInt(args[2]);
 
 		// instantiate the main body of ChatClient application.
-		new ChatClient(args[0], args[1], port);
+		try {
+			new ChatClient(args[0], args[1], port);
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
 	}
 }
@@ -0,0 +1,296 @@
+/**
+ * ChatHarness.java:<p>
+ * a headless load generator for the chat programs: it runs them on localhost,
+ * types messages into them at a given rate, measures how long each message
+ * takes to reach everybody, and checks the order it arrived in.
+ *
+ * In chat mode it starts N Chat members (with -echo so each one also prints
+ * its own messages as it sends them); in server mode it starts a ChatServer
+ * and N ChatClients; in cluster[:S] mode it starts S ChatServers linked to
+ * each other (3 by default) and N ChatClients spread over them. Every message
+ * typed is "m origin seq". The harness writes it to the origin's standard
+ * input, notes the time, and notes the time again each time another process
+ * prints it; the difference goes into a LatencyHistogram. Afterwards it
+ * checks from the output of every process that
+ * <ul>
+ * <li>every message reached every other process exactly once;
+ * <li>the messages of each origin arrived in the order they were sent;
+ * <li>(chat mode) no message arrived before anything its origin had seen
+ * when it sent it, i.e. delivery was causal.
+ * </ul>
+ *
+ * @author  Joshua Landron
+ * @version 19Oct2026
+ */
+import java.io.*; // for BufferedReader, Writer
+import java.util.*; // for ArrayList, Arrays
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.*; // for Pattern, Matcher
+
+public class ChatHarness {
+	final static Pattern MESSAGE = Pattern.compile("\\bm (\\d+) (\\d+)$");
+	final static long START_TIMEOUT = 60; // sec to wait for every process to come up
+	final static long DRAIN_TIMEOUT = 60; // sec to wait for the last messages
+
+	private final boolean server; // ChatServer + ChatClients rather than Chat
+	private final int servers; // #ChatServers to start
+	private final int members; // #processes that send messages
+	private final int messages; // #messages each of them sends
+	private final long[][] sentAt; // System.nanoTime() each message was typed
+	private final ArrayList<Process> processes = new ArrayList<>();
+	private final ArrayList<Writer> inputs = new ArrayList<>();
+	private final ArrayList<ArrayList<long[]>> logs = new ArrayList<>(); // (origin, seq) seen by each member
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong arrived = new AtomicLong(); // #messages printed by a non-origin
+	private volatile CountDownLatch ready; // counts down as processes come up
+
+	/**
+	 * @param servers  #ChatServers to test with ChatClients, 0 to test Chat
+	 * @param members  #chat members or clients
+	 * @param messages #messages each of them sends
+	 */
+	ChatHarness(int servers, int members, int messages) {
+		this.server = servers > 0;
+		this.servers = servers;
+		this.members = members;
+		this.messages = messages;
+		this.sentAt = new long[members][messages];
+		for (int i = 0; i < members; i++)
+			logs.add(new ArrayList<>());
+	}
+
+	/**
+	 * Starts every process and waits until all of them are connected.
+	 *
+	 * @param port    the first port to use on localhost
+	 * @param options extra options for each Chat member
+	 */
+	void start(int port, List<String> options) throws IOException, InterruptedException {
+		if (server) {
+			// every server prints that it started, and each link is up once
+			// both its ends say so
+			ready = new CountDownLatch(servers * servers);
+			for (int i = 0; i < servers; i++) {
+				ArrayList<String> args = new ArrayList<>(List.of("ChatServer"));
+				for (int j = 0; j < i; j++)
+					args.addAll(List.of("-peer", "localhost:" + (port + j)));
+				args.add(String.valueOf(port + i));
+				launch(-1, "-------Server Started|Peer link up", args.toArray(new String[0]));
+			}
+			if (!ready.await(START_TIMEOUT, TimeUnit.SECONDS))
+				throw new IOException("the ChatServers did not start");
+		}
+		ready = new CountDownLatch(members);
+		if (server) {
+			for (int i = 0; i < members; i++)
+				launch(i, "-----Connection to chat server established-----", "ChatClient", "c" + i, "localhost",
+						String.valueOf(port + i % servers));
+		} else {
+			ArrayList<String> hosts = new ArrayList<>();
+			for (int i = 0; i < members; i++)
+				hosts.add("localhost:" + (port + 1 + i));
+			for (int i = 0; i < members; i++) {
+				ArrayList<String> args = new ArrayList<>(Arrays.asList("Chat", "-rank", String.valueOf(i), "-echo"));
+				args.addAll(options);
+				args.add(String.valueOf(port));
+				args.addAll(hosts);
+				launch(i, "connected in", args.toArray(new String[0]));
+			}
+		}
+		if (!ready.await(START_TIMEOUT, TimeUnit.SECONDS))
+			throw new IOException("not every process came up within " + START_TIMEOUT + " sec");
+	}
+
+	/**
+	 * Starts one java process and a thread that reads what it prints.
+	 *
+	 * @param member which member it is, -1 for a server
+	 * @param banner a regular expression for the line(s) it prints as it gets
+	 *               ready
+	 */
+	private void launch(int member, String banner, String... args) throws IOException {
+		ArrayList<String> command = new ArrayList<>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.addAll(Arrays.asList(args));
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		processes.add(process);
+		if (member >= 0)
+			inputs.add(new BufferedWriter(new OutputStreamWriter(process.getOutputStream())));
+		Pattern ready = Pattern.compile(banner);
+		Thread reader = new Thread(() -> read(member, ready, process.getInputStream()), "reader-" + member);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Reads one process's output: records when each message shows up and in
+	 * which order.
+	 */
+	private void read(int member, Pattern banner, InputStream output) {
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(output))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				long now = System.nanoTime();
+				if (banner.matcher(line).find())
+					ready.countDown();
+				Matcher m = MESSAGE.matcher(line);
+				if (member < 0 || !m.find())
+					continue;
+				int origin = Integer.parseInt(m.group(1));
+				int seq = Integer.parseInt(m.group(2));
+				ArrayList<long[]> log = logs.get(member);
+				synchronized (log) {
+					log.add(new long[] { origin, seq });
+				}
+				if (origin != member) {
+					long sent;
+					synchronized (sentAt[origin]) {
+						sent = sentAt[origin][seq];
+					}
+					latency.record((now - sent) / 1000);
+					arrived.incrementAndGet();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Types every message, round robin over the members, at the given rate.
+	 *
+	 * @param rate #messages per second in total, 0 for as fast as possible
+	 */
+	void drive(double rate) throws IOException, InterruptedException {
+		long interval = rate > 0 ? (long) (1e9 / rate) : 0;
+		long start = System.nanoTime();
+		for (int k = 0; k < members * messages; k++) {
+			int origin = k % members;
+			int seq = k / members;
+			long due = start + k * interval;
+			long now;
+			while ((now = System.nanoTime()) < due)
+				TimeUnit.NANOSECONDS.sleep(Math.min(due - now, 1000000));
+			synchronized (sentAt[origin]) {
+				sentAt[origin][seq] = System.nanoTime();
+			}
+			Writer in = inputs.get(origin);
+			in.write("m " + origin + " " + seq + "\n");
+			in.flush();
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("typed %d messages in %.3f sec (%.0f msg/sec)%n", members * messages, elapsed / 1e9,
+				members * messages / (elapsed / 1e9));
+	}
+
+	/**
+	 * Waits for the last messages to arrive, then closes every process.
+	 *
+	 * @return true if every message arrived
+	 */
+	boolean finish() throws IOException, InterruptedException {
+		long expected = (long) members * (members - 1) * messages;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT);
+		while (arrived.get() < expected && System.nanoTime() < deadline)
+			Thread.sleep(50);
+		for (Writer in : inputs)
+			in.close(); // ^d
+		for (Process p : processes)
+			if (!p.waitFor(5, TimeUnit.SECONDS))
+				p.destroyForcibly();
+		return arrived.get() >= expected;
+	}
+
+	/**
+	 * Checks what every member printed: exactly once, per-origin FIFO and (for
+	 * Chat) causal order.
+	 *
+	 * @return a list of the violations found, empty if there are none
+	 */
+	List<String> verify() {
+		ArrayList<String> errors = new ArrayList<>();
+		// what each origin had seen when it sent each of its messages
+		int[][][] deps = new int[members][messages][];
+		if (!server)
+			for (int p = 0; p < members; p++) {
+				int[] seen = new int[members];
+				for (long[] e : logs.get(p)) {
+					int origin = (int) e[0];
+					int seq = (int) e[1];
+					if (origin == p && seq < messages)
+						deps[p][seq] = seen.clone();
+					seen[origin]++;
+				}
+			}
+		for (int p = 0; p < members; p++) {
+			int[] seen = new int[members];
+			for (long[] e : logs.get(p)) {
+				int origin = (int) e[0];
+				int seq = (int) e[1];
+				if (seq != seen[origin]) {
+					errors.add("member " + p + ": message " + origin + "#" + seq + " arrived when " + origin + "#"
+							+ seen[origin] + " was expected");
+				} else if (!server && origin != p && deps[origin][seq] != null) {
+					for (int k = 0; k < members; k++)
+						if (deps[origin][seq][k] > seen[k]) {
+							errors.add("member " + p + ": message " + origin + "#" + seq + " arrived before "
+									+ k + "#" + (deps[origin][seq][k] - 1) + " it depends on");
+							break;
+						}
+				}
+				seen[origin] = Math.max(seen[origin], seq + 1);
+			}
+			for (int origin = 0; origin < members; origin++)
+				if ((origin != p || !server) && seen[origin] != messages)
+					errors.add("member " + p + ": " + seen[origin] + " of " + messages + " messages from " + origin);
+		}
+		return errors;
+	}
+
+	/**
+	 * Usage: java ChatHarness chat|server|cluster[:servers] <members> <messages>
+	 * <rate> [port] [Chat options...]
+	 *
+	 * @param args the mode, #members or #clients, #messages each of them sends,
+	 *             #messages per second in total (0 for as fast as possible), the
+	 *             first port to use, and any options to pass to each Chat member.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4 || !args[0].matches("chat|server|cluster(:\\d+)?")) {
+			System.err.println("Syntax: java ChatHarness chat|server|cluster[:servers] <members> <messages> <rate> "
+					+ "[port] [Chat options]");
+			System.exit(1);
+		}
+		int servers = args[0].equals("chat") ? 0 : args[0].equals("server") ? 1 : 3;
+		if (args[0].startsWith("cluster:"))
+			servers = Integer.parseInt(args[0].substring(8));
+		int members = Integer.parseInt(args[1]);
+		int messages = Integer.parseInt(args[2]);
+		double rate = Double.parseDouble(args[3]);
+		int port = (args.length > 4) ? Integer.parseInt(args[4]) : 7000;
+		List<String> options = (args.length > 5) ? Arrays.asList(args).subList(5, args.length) : List.of();
+
+		ChatHarness harness = new ChatHarness(servers, members, messages);
+		try {
+			harness.start(port, options);
+			harness.drive(rate);
+			boolean complete = harness.finish();
+			System.out.println((servers > 1 ? servers + " ChatServers with " + members + " clients"
+					: servers == 1 ? "ChatServer with " + members + " clients" : members + " Chat members")
+					+ ": end-to-end latency (msec)" + (complete ? "" : ", INCOMPLETE"));
+			harness.latency.print(System.out);
+			List<String> errors = harness.verify();
+			for (String e : errors.subList(0, Math.min(errors.size(), 20)))
+				System.out.println(e);
+			System.out.println(errors.isEmpty() ? "order verified: OK" : errors.size() + " ordering violation(s)");
+			System.exit(errors.isEmpty() && complete ? 0 : 1);
+		} finally {
+			for (Process p : harness.processes)
+				p.destroyForcibly();
+		}
+	}
+}
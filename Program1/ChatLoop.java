@@ -0,0 +1,614 @@
+
+/**
+ * ChatLoop.java
+ * one of the ChatServer's event-loop threads: serves the clients of the rooms
+ * hashed onto it from its own Selector.
+ *
+ * A loop owns its connections and its rooms outright, so it never takes a lock
+ * to broadcast, and a busy room only keeps its own loop busy. Clients come to
+ * a loop through its inbox: new ones from the ChatServer's acceptor, and those
+ * joining one of its rooms from the other loops. A client changing to a room
+ * of another loop is detached from this loop's Selector, handed over with any
+ * messages it sent after the command, and never touched here again.
+ *
+ * @author  Joshua Landron (CSS434 Spring 2019, University of Washington, Bothell)
+ * @since   10/19/26
+ * @version 10/19/26
+ */
+import java.io.*; // for IOException
+import java.nio.channels.*; // for Selector, SelectionKey
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class ChatLoop implements Runnable {
+    final static long HEARTBEAT_TICK = 100; // msec per tick of the clients' timers
+    /**
+     * A client arriving at this loop, with the messages it sent after joining
+     * one of its rooms, which go to that room.
+     */
+    private static class Arrival {
+        Connection client;
+        List<Object> messages;
+
+        Arrival(Connection client, List<Object> messages) {
+            this.client = client;
+            this.messages = messages;
+        }
+    }
+
+    private final int id; // which loop this is
+    private final ChatServer server;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Arrival> inbox = new ConcurrentLinkedQueue<>();
+    // messages from peer servers for this loop's rooms: { room, text }
+    private final ConcurrentLinkedQueue<String[]> remote = new ConcurrentLinkedQueue<>();
+    // maintain a set of connections served by this loop
+    private final LinkedHashSet<Connection> connections = new LinkedHashSet<>();
+    // the members of each room on this loop
+    private final HashMap<String, LinkedHashSet<Connection>> rooms = new HashMap<>();
+    // the recent messages of the rooms on this loop, least recently used first
+    private final LinkedHashMap<String, History> histories = new LinkedHashMap<>(16, 0.75f, true);
+    // connections with messages queued since the last flush
+    private final ArrayList<Connection> pending = new ArrayList<>();
+    // clients sending a large message, not read until these receivers catch up
+    private final HashMap<Connection, ArrayList<Connection>> paused = new HashMap<>();
+    // when each client is to be pinged or disconnected for its silence
+    private final TimerWheel<Connection> timers;
+    private long evicted = 0; // #clients disconnected for being too slow
+    private long lost = 0; // #messages dropped for clients no longer connected
+    private int streams = 0; // #large messages sent in parts through this loop
+
+    /**
+     * @param id     which loop this is, for reports
+     * @param server the server that routes rooms to loops
+     */
+    ChatLoop(int id, ChatServer server) throws IOException {
+        this.id = id;
+        this.server = server;
+        this.selector = Selector.open();
+        // a turn of the wheel longer than the idle timeout: a timer is
+        // visited only when it fires
+        long idle = server.options().idle * 1000 / HEARTBEAT_TICK;
+        this.timers = new TimerWheel<>(HEARTBEAT_TICK, (int) Math.min(64 * 1024, idle + 1), System.currentTimeMillis());
+    }
+
+    /**
+     * Usage: hands a client to this loop; called from any thread.
+     *
+     * @param client   a client of one of this loop's rooms
+     * @param messages what the client sent after joining the room
+     */
+    void admit(Connection client, List<Object> messages) {
+        inbox.add(new Arrival(client, messages));
+        selector.wakeup();
+    }
+
+    /**
+     * Usage: puts a message from the log back into its room's history; called
+     * before the loop starts.
+     *
+     * @param room one of this loop's rooms
+     * @param msg  the message
+     */
+    void restore(String room, String msg) {
+        History history = history(room);
+        if (history != null) {
+            try {
+                history.append(msg).release();
+            } catch (UTFDataFormatException e) {
+                /* it was never numbered either */}
+        }
+    }
+
+    /**
+     * Usage: hands a message from a peer server to this loop; called from the
+     * Federation's thread.
+     *
+     * @param room one of this loop's rooms
+     * @param msg  the message
+     */
+    void deliver(String room, String msg) {
+        remote.add(new String[] { room, msg });
+        selector.wakeup();
+    }
+
+    /**
+     * Serves the loop's clients in a "while" loop that:
+     * <p>
+     *
+     * <ol>
+     * <li>admits the clients handed to this loop
+     * <li>forwards the messages from peer servers to their rooms
+     * <li>forwards each message a client sends to the others in its room, and
+     * carries out its commands
+     * <li>writes out the messages queued for each client
+     * <li>disconnects clients with errors
+     * </ol>
+     */
+    public void run() {
+        ChatServer.Options options = server.options();
+        try {
+            ArrayList<Object> messages = new ArrayList<>();
+            long nextSample = System.currentTimeMillis() + ChatMetrics.TICK;
+            long nextReport = System.currentTimeMillis() + options.stats * 1000;
+            while (true) {// start loop
+                long timeout = nextSample - System.currentTimeMillis();
+                if (timers.size() > 0) {
+                    timeout = Math.min(timeout, timers.untilNextTick(System.currentTimeMillis()));
+                }
+                selector.select(Math.max(1, timeout));
+
+                // take the clients handed over since the last select()
+                Arrival a;
+                while ((a = inbox.poll()) != null) {
+                    Connection c = a.client;
+                    connections.add(c);
+                    rooms.computeIfAbsent(c.room, r -> new LinkedHashSet<>()).add(c);
+                    c.register(selector);
+                    watch(c);
+                    if (a.messages != null) {
+                        receive(c, a.messages);
+                    }
+                }
+                String[] r;
+                while ((r = remote.poll()) != null) {
+                    sendMessages(r[0], r[1], null);
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    if (key.isWritable()) {
+                        c.flush();
+                    }
+                    if (key.isReadable()) {
+                        // forward the new messages from this client
+                        c.readMessages(messages);
+                        receive(c, messages);
+                        messages.clear();
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                // ping the clients silent for too long, and give up on the
+                // ones silent for longer
+                timers.advance(System.currentTimeMillis(), this::silent);
+
+                // write out what was queued for each client
+                for (Connection c : pending) {
+                    c.flush();
+                }
+                pending.clear();
+
+                if (!paused.isEmpty()) {
+                    resume();
+                }
+
+                // check clients for errors, disconnect as needed
+                connections.removeIf(c -> {
+                    if (!c.disconnect) { // checks the boolean value in each connection
+                        return false;
+                    }
+                    if (c.queuedBytes() >= options.queue / 2) {
+                        evicted++;
+                        System.out.println("Client " + c.name + " too slow, " + c.queuedBytes() + " bytes queued");
+                    }
+                    // attempt to send client disconnect message
+                    c.writeMessage("Error detected. Please reconnect to server. Goodbye.");
+                    c.flush();
+                    c.disconnect(); // closes the channel
+                    timers.cancel(c.timer);
+                    lost += c.dropped();
+                    leaveRoom(c);
+                    server.metrics().disconnects.increment();
+                    System.out.println("Client disconnected, The number of active connections is: "
+                            + server.active().decrementAndGet());
+                    return true;
+                });
+
+                long now = System.currentTimeMillis();
+                if (now >= nextSample) {
+                    boolean report = options.stats > 0 && now >= nextReport;
+                    sample(report);
+                    nextSample = now + ChatMetrics.TICK;
+                    if (report) {
+                        nextReport = now + options.stats * 1000;
+                    }
+                }
+            } // end loop
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Usage: handles the messages a client sent, in order: commands are carried
+     * out, everything else goes to the client's room. If the client moves to a
+     * room of another loop, the rest of the messages go with it.
+     */
+    private void receive(Connection c, List<Object> messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            if (messages.get(i) instanceof SharedFrame) {
+                stream(c, (SharedFrame) messages.get(i));
+                continue;
+            }
+            String msg = (String) messages.get(i);
+            if (msg.startsWith(Federation.HELLO)) {
+                // a peer server, not a client: the Federation serves it
+                leaveRoom(c);
+                handOver(c);
+                server.active().decrementAndGet();
+                server.federation().adopt(c, new ArrayList<>(messages.subList(i, messages.size())));
+                return;
+            }
+            if (msg.equals(ChatServer.SEQ) || msg.startsWith(ChatServer.SINCE)) {
+                catchUp(c, msg);
+                continue;
+            }
+            if (msg.startsWith("\0")) {
+                continue; // a control frame not meant for a client
+            }
+            String command = ChatServer.command(msg);
+            if (command == null) {
+                publish(msg, c);
+                continue;
+            }
+            String room = null;
+            if (command.startsWith("/join ") && command.length() > 6) {
+                room = command.substring(6).trim();
+            } else if (command.equals("/leave")) {
+                room = ChatServer.LOBBY;
+            } else if (command.equals("/room")) {
+                if (c.writeMessage("-----You are in room " + c.room + "-----")) {
+                    pending.add(c);
+                }
+                continue;
+            }
+            if (room == null) {
+                publish(msg, c); // not a command after all
+                continue;
+            }
+            leaveRoom(c);
+            c.room = room;
+            boolean wasEmpty = c.writeMessage("-----Joined room " + room + "-----");
+            ChatLoop owner = server.loopOf(room);
+            if (owner == this) {
+                rooms.computeIfAbsent(room, r -> new LinkedHashSet<>()).add(c);
+                if (wasEmpty) {
+                    pending.add(c);
+                }
+            } else {
+                // the other loop serves the client from now on
+                handOver(c);
+                owner.admit(c, new ArrayList<>(messages.subList(i + 1, messages.size())));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Usage: lets go of a client another thread serves from now on. A sender
+     * paused in stream() is read again there, and a message it was streaming
+     * here ends here: the rest of it has no stream on the new loop.
+     */
+    private void handOver(Connection c) {
+        connections.remove(c);
+        pending.remove(c);
+        c.detach();
+        timers.cancel(c.timer);
+        paused.remove(c);
+        c.pause(false);
+        c.stream = 0;
+    }
+
+    /**
+     * Usage: starts the timer that notices when a client falls silent.
+     */
+    private void watch(Connection c) {
+        if (server.options().heartbeat > 0) {
+            timers.schedule(c.timer, c.heard + server.options().heartbeat * 1000);
+        }
+    }
+
+    /**
+     * Usage: handles a client whose timer fired: one heard from since is
+     * watched again, one silent for -heartbeat seconds is pinged, and one
+     * silent for -idle seconds is disconnected. A sender paused in stream() is
+     * not read, so its silence is the server's doing: it counts as heard.
+     */
+    private void silent(Connection c) {
+        if (c.disconnect) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (paused.containsKey(c)) {
+            c.heard = now;
+            watch(c);
+            return;
+        }
+        long heartbeat = server.options().heartbeat * 1000;
+        long idle = server.options().idle * 1000;
+        if (now - c.heard >= idle) {
+            System.out.println("Client " + c.name + " silent for " + (now - c.heard) / 1000 + " sec");
+            server.metrics().idleEvictions.increment();
+            c.disconnect = true;
+        } else if (now - c.heard >= heartbeat) {
+            if (c.writeMessage(ChatServer.PING)) {
+                pending.add(c);
+            }
+            server.metrics().pings.increment();
+            timers.schedule(c.timer, Math.min(now + heartbeat, c.heard + idle));
+        } else {
+            watch(c);
+        }
+    }
+
+    /**
+     * Usage: numbers the messages a client gets from now on and, for "\0SINCE
+     * n", sends it every message of its room after n still kept, in one piece;
+     * for "\0SEQ", tells it the room's latest seq instead.
+     */
+    private void catchUp(Connection c, String msg) {
+        History history = history(c.room);
+        if (history == null) {
+            return; // no numbers to give
+        }
+        c.sequenced = true;
+        boolean wasEmpty = c.queued() == 0;
+        if (msg.equals(ChatServer.SEQ)) {
+            c.writeMessage(ChatServer.SEQ + " " + history.latest());
+        } else {
+            long seq;
+            try {
+                seq = Long.parseLong(msg.substring(ChatServer.SINCE.length()).trim());
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (seq + 1 < history.first()) {
+                c.writeMessage("-----" + (history.first() - seq - 1) + " message(s) no longer kept-----");
+            }
+            SharedFrame missed = history.since(seq);
+            if (missed != null) {
+                c.send(missed);
+                missed.release();
+            }
+        }
+        if (wasEmpty && c.queued() > 0) {
+            pending.add(c);
+        }
+    }
+
+    /**
+     * @return the history of a room on this loop, null if none are kept
+     */
+    private History history(String room) {
+        int capacity = Math.min(server.options().history, server.options().queue);
+        if (capacity <= 0) {
+            return null;
+        }
+        History history = histories.get(room);
+        if (history == null) {
+            if (histories.size() >= server.options().rooms) {
+                forget();
+            }
+            history = new History(capacity);
+            histories.put(room, history);
+        }
+        return history;
+    }
+
+    /**
+     * Usage: drops the history of the least recently used room that has no
+     * clients on this loop, if there is one, so rooms joined once and left do
+     * not keep their rings forever. Its numbering starts again from 0 if the
+     * room is used again.
+     */
+    private void forget() {
+        Iterator<String> names = histories.keySet().iterator();
+        while (names.hasNext()) {
+            if (!rooms.containsKey(names.next())) {
+                names.remove(); // the ring goes with the next GC
+                return;
+            }
+        }
+    }
+
+    /**
+     * Usage: sends a client's message to its room, here and on the peer
+     * servers.
+     */
+    private void publish(String msg, Connection sender) {
+        server.metrics().messagesIn.increment();
+        sendMessages(sender.room, msg, sender);
+        server.federation().publish(sender.room, msg);
+    }
+
+    /**
+     * Usage: passes a part of a large message on to every other client in the
+     * sender's room as soon as it arrives. The parts of one message are given
+     * a stream number unique on this loop, for the receivers to put them back
+     * together; a client that joins the room halfway through gets the rest
+     * without the FIRST part, and throws it away. Large messages are not
+     * numbered, kept, logged or relayed to peer servers, since that would take
+     * holding them whole.
+     */
+    private void stream(Connection c, SharedFrame part) {
+        long start = System.nanoTime();
+        if (part.type() == SharedFrame.FIRST) {
+            streams = (streams == Integer.MAX_VALUE) ? 1 : streams + 1;
+            c.stream = streams;
+            server.metrics().messagesIn.increment();
+        }
+        if (c.stream == 0) {
+            part.release(); // the rest of a message whose start was not seen
+            return;
+        }
+        part.stream(c.stream);
+        if (part.type() == SharedFrame.LAST) {
+            c.stream = 0;
+        }
+        int sent = 0;
+        ArrayList<Connection> behind = new ArrayList<>();
+        LinkedHashSet<Connection> room = rooms.get(c.room);
+        if (room != null) {
+            for (Connection client : room) {
+                if (client == c) {
+                    continue; // do not send message to original sender
+                }
+                if (client.send(part)) {
+                    pending.add(client);
+                }
+                if (client.queuedBytes() > server.options().queue / 2) {
+                    behind.add(client);
+                }
+                sent++;
+            }
+        }
+        server.metrics().broadcast(System.nanoTime() - start, sent, part.length());
+        part.release();
+        if (!behind.isEmpty()) {
+            // read no more parts until the slowest receivers catch up, rather
+            // than fill their queues and lose them
+            c.pause(true);
+            paused.put(c, behind);
+        }
+    }
+
+    /**
+     * Usage: reads again from the senders paused in stream() whose receivers
+     * have caught up, are gone, or have left the room, and forgets the
+     * senders that are gone. A receiver that moved to another loop belongs to
+     * that loop's thread, and is dropped from the list before anything else of
+     * it is read; a sender that moved was unpaused by handOver().
+     */
+    private void resume() {
+        long low = server.options().queue / 4;
+        paused.entrySet().removeIf(e -> {
+            Connection sender = e.getKey();
+            if (sender.disconnect || !connections.contains(sender)) {
+                sender.pause(false);
+                return true;
+            }
+            e.getValue().removeIf(r -> !connections.contains(r) || r.disconnect || r.queuedBytes() <= low
+                    || !r.room.equals(sender.room));
+            if (!e.getValue().isEmpty()) {
+                return false;
+            }
+            sender.heard = System.currentTimeMillis(); // not read while paused
+            sender.pause(false);
+            return true;
+        });
+    }
+
+    /**
+     * Usage: sends message to every other client in a room, and keeps it in the
+     * room's history. The message is encoded once, numbered once more for the
+     * clients that asked for sequence numbers, and every client queues the
+     * same bytes as the others of its kind.
+     *
+     * @param name   the room
+     * @param msg    String to be ditributed to the room.
+     * @param sender the connection the message came from, used to keep the
+     *               server from sending messages to sender; null if it came
+     *               from a peer server
+     */
+    void sendMessages(String name, String msg, Connection sender) {
+        LinkedHashSet<Connection> room = rooms.get(name);
+        History history = history(name);
+        if (room == null && history == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        SharedFrame frame;
+        SharedFrame numbered = null;
+        try {
+            frame = SharedFrame.encode(msg);
+        } catch (UTFDataFormatException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (server.log() != null) {
+            server.log().append(name, msg);
+        }
+        try {
+            if (history != null) {
+                numbered = history.append(msg);
+            }
+        } catch (UTFDataFormatException e) {
+            /* too long to number: everybody gets it plain */}
+        int sent = 0;
+        if (room != null) {
+            for (Connection client : room) {
+                if (client == sender) {
+                    continue; // do not send message to original sender
+                }
+                if (client.send(client.sequenced && numbered != null ? numbered : frame)) {
+                    pending.add(client);
+                }
+                sent++;
+            }
+        }
+        server.metrics().broadcast(System.nanoTime() - start, sent, frame.length());
+        frame.release(); // the clients hold their own references
+        if (numbered != null) {
+            numbered.release();
+        }
+    }
+
+    /**
+     * Usage: takes a client out of its room, dropping the room once empty.
+     */
+    private void leaveRoom(Connection c) {
+        LinkedHashSet<Connection> room = rooms.get(c.room);
+        if (room != null && room.remove(c) && room.isEmpty()) {
+            rooms.remove(c.room);
+        }
+    }
+
+    /**
+     * Usage: sums up how full this loop's outbound queues are for the metrics
+     * and, if report is true, prints it: the total, the deepest one, and what
+     * the slow-consumer policy has cost so far.
+     */
+    private void sample(boolean report) {
+        long messages = 0, bytes = 0, dropped = lost;
+        int behind = 0; // #clients over half their limit
+        Connection deepest = null;
+        for (Connection c : connections) {
+            messages += c.queued();
+            bytes += c.queuedBytes();
+            dropped += c.dropped();
+            if (c.queuedBytes() >= server.options().queue / 2) {
+                behind++;
+            }
+            if (deepest == null || c.queuedBytes() > deepest.queuedBytes()) {
+                deepest = c;
+            }
+        }
+        server.metrics().queues(id, connections.size(), messages, bytes,
+                deepest == null ? 0 : deepest.queuedBytes(), behind);
+        if (!report) {
+            return;
+        }
+        System.out.println("loop " + id + ": rooms: " + rooms.size() + " (" + histories.size()
+                + " with history), clients: " + connections.size() + ", queued: " + messages + " msgs / " + bytes
+                + " bytes, over half full: " + behind + ", dropped: " + dropped + " msgs, evicted: " + evicted
+                + ", frames: " + SharedFrame.inUse() + " in use / " + SharedFrame.allocated() + " allocated"
+                + (deepest == null ? ""
+                        : ", deepest: " + deepest.name + " " + deepest.queuedBytes() + " bytes (high water "
+                                + deepest.highWater() + ")"));
+        if (id == 0) {
+            System.out.println("loop 0: " + server.federation().summary());
+            if (server.log() != null) {
+                System.out.println("loop 0: " + server.log().summary());
+            }
+        }
+    }
+}
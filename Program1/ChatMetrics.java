@@ -0,0 +1,278 @@
+
+/**
+ * ChatMetrics.java
+ * counters and a fan-out time histogram for a ChatServer, shown through JMX
+ * and, with -metrics port, as plain text at http://localhost:port/metrics.
+ *
+ * The loops count as they go into LongAdders, which spread concurrent
+ * increments over cells instead of contending for one word, so counting costs
+ * a loop a few nanoseconds and never blocks it. Fan-out times (from encoding a
+ * message to queueing it for the last client of its room) go into one adder
+ * per power of two of nanoseconds, so percentiles are within a factor of two,
+ * enough to see a room getting slow. Queue depths belong to the loops' threads
+ * and are not read from outside: each loop sums up its clients' queues about
+ * once a second and leaves the figures here. A ticker thread turns the counts
+ * into per-second rates at the same pace.
+ *
+ * @author  Joshua Landron (CSS434 Spring 2019, University of Washington, Bothell)
+ * @since   10/19/26
+ * @version 10/19/26
+ */
+import java.io.*; // for IOException
+import java.lang.management.ManagementFactory;
+import java.net.*; // for InetAddress, InetSocketAddress
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+import com.sun.net.httpserver.HttpServer;
+
+class ChatMetrics implements ChatMetricsMBean {
+    final static long TICK = 1000; // msec between rates, and between samples of the queues
+    final static int BUCKETS = 48; // powers of two of nanoseconds, up to about 39 hours
+
+    // kept by the loops and the acceptor
+    final LongAdder messagesIn = new LongAdder(); // #messages clients sent to a room
+    final LongAdder messagesOut = new LongAdder(); // #messages queued for clients
+    final LongAdder bytesOut = new LongAdder(); // #bytes of them
+    final LongAdder accepts = new LongAdder(); // #clients accepted
+    final LongAdder disconnects = new LongAdder(); // #clients disconnected
+    final LongAdder idleEvictions = new LongAdder(); // #clients disconnected for silence
+    final LongAdder pings = new LongAdder(); // #heartbeats sent
+    private final LongAdder[] fanout = new LongAdder[BUCKETS]; // #broadcasts per time
+    private final LongAccumulator fanoutMax = new LongAccumulator(Math::max, 0);
+    // per loop: { clients, queued msgs, queued bytes, deepest queue bytes, clients over half }
+    private final AtomicReferenceArray<long[]> queues;
+
+    private final int port; // the server's port, to tell servers apart in JMX
+    private volatile double inRate, outRate, acceptRate; // per second over the last tick
+
+    /**
+     * @param port  the server's port
+     * @param loops #loops that report their queues
+     */
+    ChatMetrics(int port, int loops) {
+        this.port = port;
+        for (int i = 0; i < BUCKETS; i++) {
+            fanout[i] = new LongAdder();
+        }
+        queues = new AtomicReferenceArray<>(loops);
+        for (int i = 0; i < loops; i++) {
+            queues.set(i, new long[5]);
+        }
+    }
+
+    /**
+     * Usage: registers the MBean, starts the ticker, and serves the text
+     * endpoint on localhost if httpPort is not 0.
+     */
+    void start(int httpPort) throws Exception {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName("ChatServer:type=Metrics,port=" + port));
+        Thread ticker = new Thread(() -> {
+            long in = 0, out = 0, accepted = 0, last = System.nanoTime();
+            while (true) {
+                try {
+                    Thread.sleep(TICK);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = System.nanoTime();
+                double sec = (now - last) / 1e9;
+                long i = messagesIn.sum(), o = messagesOut.sum(), a = accepts.sum();
+                inRate = (i - in) / sec;
+                outRate = (o - out) / sec;
+                acceptRate = (a - accepted) / sec;
+                in = i;
+                out = o;
+                accepted = a;
+                last = now;
+            }
+        }, "chat-metrics");
+        ticker.setDaemon(true);
+        ticker.start();
+        if (httpPort != 0) {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = text().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.start(); // on its own thread
+            System.out.println("Metrics at http://localhost:" + http.getAddress().getPort() + "/metrics");
+        }
+    }
+
+    /**
+     * Usage: records one broadcast.
+     *
+     * @param nanos   how long it took
+     * @param clients #clients it was queued for
+     * @param bytes   #bytes queued for each
+     */
+    void broadcast(long nanos, int clients, int bytes) {
+        fanout[Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(Math.max(1, nanos)))].increment();
+        fanoutMax.accumulate(nanos);
+        messagesOut.add(clients);
+        bytesOut.add((long) clients * bytes);
+    }
+
+    /**
+     * Usage: leaves the latest sums of one loop's queues; called from that
+     * loop.
+     */
+    void queues(int loop, int clients, long messages, long bytes, long deepest, int overHalf) {
+        queues.set(loop, new long[] { clients, messages, bytes, deepest, overHalf });
+    }
+
+    /**
+     * @return the q-th quantile of fan-out times in usec, rounded up to a
+     *         power of two of nanoseconds
+     */
+    private long fanout(double q) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = fanout[i].sum();
+            total += counts[i];
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return (2L << i) / 1000;
+            }
+        }
+        return 0;
+    }
+
+    /** @return one queue figure summed (or, for the deepest, maxed) over the loops */
+    private long queue(int figure) {
+        long n = 0;
+        for (int i = 0; i < queues.length(); i++) {
+            long v = queues.get(i)[figure];
+            n = (figure == 3) ? Math.max(n, v) : n + v;
+        }
+        return n;
+    }
+
+    /**
+     * @return every figure as "name value" lines, the format Prometheus
+     *         scrapes
+     */
+    String text() {
+        StringBuilder b = new StringBuilder();
+        line(b, "chat_messages_in_total", getMessagesIn());
+        line(b, "chat_messages_out_total", getMessagesOut());
+        line(b, "chat_bytes_out_total", getBytesOut());
+        line(b, "chat_messages_in_per_second", getMessagesInPerSecond());
+        line(b, "chat_messages_out_per_second", getMessagesOutPerSecond());
+        line(b, "chat_accepts_total", getAccepts());
+        line(b, "chat_accepts_per_second", getAcceptsPerSecond());
+        line(b, "chat_disconnects_total", getDisconnects());
+        line(b, "chat_idle_evictions_total", getIdleEvictions());
+        line(b, "chat_pings_total", getPings());
+        line(b, "chat_clients", getClients());
+        line(b, "chat_broadcasts_total", getBroadcasts());
+        for (double q : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+            line(b, "chat_fanout_micros{quantile=\"" + q + "\"}", fanout(q));
+        }
+        line(b, "chat_fanout_max_micros", getFanoutMaxMicros());
+        line(b, "chat_queued_messages", getQueuedMessages());
+        line(b, "chat_queued_bytes", getQueuedBytes());
+        line(b, "chat_deepest_queue_bytes", getDeepestQueueBytes());
+        line(b, "chat_clients_over_half_queue", getClientsOverHalfQueue());
+        line(b, "chat_frames_in_use", SharedFrame.inUse());
+        line(b, "chat_frames_allocated", SharedFrame.allocated());
+        return b.toString();
+    }
+
+    private static void line(StringBuilder b, String name, Object value) {
+        b.append(name).append(' ').append(value).append('\n');
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public double getMessagesInPerSecond() {
+        return inRate;
+    }
+
+    public double getMessagesOutPerSecond() {
+        return outRate;
+    }
+
+    public long getAccepts() {
+        return accepts.sum();
+    }
+
+    public double getAcceptsPerSecond() {
+        return acceptRate;
+    }
+
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    public long getIdleEvictions() {
+        return idleEvictions.sum();
+    }
+
+    public long getPings() {
+        return pings.sum();
+    }
+
+    public int getClients() {
+        return (int) queue(0);
+    }
+
+    public long getBroadcasts() {
+        long n = 0;
+        for (LongAdder a : fanout) {
+            n += a.sum();
+        }
+        return n;
+    }
+
+    public long getFanoutMedianMicros() {
+        return fanout(0.5);
+    }
+
+    public long getFanout99thMicros() {
+        return fanout(0.99);
+    }
+
+    public long getFanoutMaxMicros() {
+        return fanoutMax.get() / 1000;
+    }
+
+    public long getQueuedMessages() {
+        return queue(1);
+    }
+
+    public long getQueuedBytes() {
+        return queue(2);
+    }
+
+    public long getDeepestQueueBytes() {
+        return queue(3);
+    }
+
+    public long getClientsOverHalfQueue() {
+        return queue(4);
+    }
+}
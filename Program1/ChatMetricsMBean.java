@@ -0,0 +1,48 @@
+
+/**
+ * ChatMetricsMBean.java
+ * what ChatMetrics shows through JMX, e.g. in jconsole under ChatServer.
+ *
+ * @author  Joshua Landron (CSS434 Spring 2019, University of Washington, Bothell)
+ * @since   10/19/26
+ * @version 10/19/26
+ */
+public interface ChatMetricsMBean {
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    long getAccepts();
+
+    double getAcceptsPerSecond();
+
+    long getDisconnects();
+
+    long getIdleEvictions();
+
+    long getPings();
+
+    int getClients();
+
+    long getBroadcasts();
+
+    long getFanoutMedianMicros();
+
+    long getFanout99thMicros();
+
+    long getFanoutMaxMicros();
+
+    long getQueuedMessages();
+
+    long getQueuedBytes();
+
+    long getDeepestQueueBytes();
+
+    long getClientsOverHalfQueue();
+}
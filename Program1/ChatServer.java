@@ -5,75 +5,197 @@
  *
  * @author  Joshua Landron (CSS434 Spring 2019, University of Washington, Bothell)
  * @since   4/12/19
- * @version 4/14/19
+ * @version 10/19/26
  */
-import java.net.*; // for Socket
+import java.net.*; // for InetSocketAddress
+import java.nio.channels.*; // for ServerSocketChannel, SocketChannel
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*; // for IOException
+import java.nio.file.Paths;
 
 public class ChatServer {
-    // maintain a list of connections to this server
-    private ArrayList<Connection> connections = new ArrayList<>(); // connection to i
+    final static int BACKLOG = 4096; // connection requests the OS may hold before accept()
+    final static String LOBBY = "lobby"; // the room every client starts in
+    final static String SEQ = "\0SEQ"; // asks for sequence numbers
+    final static String SINCE = "\0SINCE "; // asks for the messages after a seq
+    final static String PING = "\0PING"; // asks an idle client if it is still there
+    final static String PONG = "\0PONG"; // the client's answer
+
+    private Options options = null;
+    private ChatLoop[] loops = null; // the event-loop threads, each owning some rooms
+    private Federation federation = null; // the links to peer servers
+    private MessageLog log = null; // every message sent to a room, null if not kept
+    private ChatMetrics metrics = null; // counters for JMX and the metrics endpoint
+    private final AtomicInteger active = new AtomicInteger(); // #clients connected
 
     /**
-     * Creates a socket, contacts to the server with a given server ip name and a
-     * port, sends a given calling user name, and goes into a "while" loop in that:
+     * The command-line options of the server.
+     */
+    static class Options {
+        int queue = 1024 * 1024; // #bytes that may wait for one client
+        Connection.Policy slow = Connection.Policy.COALESCE; // what to do when they are full
+        long stats = 0; // sec between queue reports, 0 for none
+        int metrics = 0; // the localhost port for the metrics endpoint, 0 for none
+        int loops = Runtime.getRuntime().availableProcessors(); // #event-loop threads
+        long heartbeat = 30; // sec of silence before a client is pinged, 0 for never
+        long idle = 90; // sec of silence before a client is disconnected
+        int history = 256 * 1024; // #bytes of recent messages kept per room, 0 for none
+        int rooms = 256; // #rooms per loop whose history is kept, besides the ones with clients
+        String log = null; // the directory of the message log, null for none
+        int segment = 64 * 1024 * 1024; // #bytes in each log segment
+        int keep = 16; // #log segments kept, the oldest deleted first
+        long commit = 10; // msec between forces of the log to disk
+        String id = null; // this server's name in a cluster, host:port by default
+        ArrayList<InetSocketAddress> peers = new ArrayList<>(); // the servers to link to
+
+        /**
+         * Retrieves the options at the start of args.
+         *
+         * @return the index of the first argument that is not an option
+         */
+        int parse(String[] args) {
+            int i = 0;
+            for (; i < args.length && args[i].startsWith("-"); i++) {
+                boolean more = i + 1 < args.length;
+                if (args[i].equals("-queue") && more) {
+                    queue = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-slow") && more) {
+                    slow = Connection.Policy.valueOf(args[++i].toUpperCase());
+                } else if (args[i].equals("-stats") && more) {
+                    stats = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-heartbeat") && more) {
+                    heartbeat = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-idle") && more) {
+                    idle = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-metrics") && more) {
+                    metrics = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-loops") && more) {
+                    loops = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-history") && more) {
+                    history = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-rooms") && more) {
+                    rooms = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-log") && more) {
+                    log = args[++i];
+                } else if (args[i].equals("-segment") && more) {
+                    segment = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-keep") && more) {
+                    keep = Integer.parseInt(args[++i]);
+                    if (keep < 1) {
+                        throw new IllegalArgumentException("-keep needs at least 1 segment, not " + keep);
+                    }
+                } else if (args[i].equals("-commit") && more) {
+                    commit = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-id") && more) {
+                    id = args[++i];
+                } else if (args[i].equals("-peer") && more) {
+                    String peer = args[++i];
+                    int colon = peer.lastIndexOf(':');
+                    if (colon < 0) {
+                        throw new IllegalArgumentException("-peer needs host:port, not " + peer);
+                    }
+                    peers.add(new InetSocketAddress(peer.substring(0, colon),
+                            Integer.parseInt(peer.substring(colon + 1))));
+                } else {
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Creates a server socket, starts the event-loop threads, and accepts
+     * clients in a "while" loop, handing each to the loop that owns the lobby.
+     * <p>
+     *
+     * Clients talk in rooms. A message that is one of these commands, on its
+     * own or after the "name: " ChatClient puts in front of what is typed, is
+     * not forwarded:
+     *
+     * <ul>
+     * <li>/join room: leave the current room for another, created as needed
+     * <li>/leave: go back to the lobby
+     * <li>/room: ask which room this is
+     * </ul>
+     *
+     * Each room keeps its recent messages, numbered (see History). A client
+     * that sends the control frame "\0SEQ" gets every message of its room as
+     * "\0" seq " " text, and the room's latest seq right away; one that sends
+     * "\0SINCE n", after reconnecting, gets every message after n the room
+     * still has in one bulk transfer, and sequence numbers from then on.
+     * With -log, every message also goes to a MessageLog on disk, from which
+     * the history is rebuilt when the server starts again; the log keeps its
+     * last -keep segments and deletes older ones whole. Each loop keeps the
+     * history of at most -rooms rooms besides the ones with clients, dropping
+     * the least recently used.
      * <p>
      *
-     * <ol>
-     * <li>forward a message from the standard input to the server
-     * <li>forward a message from the server to the standard output
-     * </ol>
+     * Every other message goes to the other clients in the sender's room. Each
+     * room is hashed onto one of the loops, which serves all its clients from
+     * its own Selector, so broadcasts in different rooms run on different
+     * cores and a busy room does not delay the others.
+     * <p>
+     *
+     * Servers linked with -peer form a cluster (see Federation): a client may
+     * connect to any of them, and its messages reach the room on every server.
+     * Each link needs to be given on one side only.
+     * <p>
      *
-     * @param name   the calling user name
-     * @param server a server ip name
-     * @param port   a server port
+     * A client the server has not heard from for -heartbeat seconds is sent
+     * the control frame "\0PING", to which it answers "\0PONG"; one not heard
+     * from for -idle seconds is disconnected, so clients whose connection died
+     * without a FIN or RST do not stay in their rooms forever. Each loop keeps
+     * the deadlines of its clients in a TimerWheel.
+     * <p>
+     *
+     * Throughput, fan-out times, queue depths and accepts are counted in a
+     * ChatMetrics, shown through JMX and, with -metrics, over HTTP on
+     * localhost.
+     *
+     * @param port    a server port
+     * @param options the outbound queue limit, slow-consumer policy, reports and
+     *                #loops
      */
-    public ChatServer(int port) {
+    public ChatServer(int port, Options options) {
+        this.options = options;
         // set up server
-        ServerSocket server;
         try {
-            server = new ServerSocket(port);
-            System.out.println("-------Server Started on port " + port + "-------");
-            server.setSoTimeout(500);
+            String id = (options.id != null) ? options.id : InetAddress.getLocalHost().getHostName() + ":" + port;
+            federation = new Federation(this, id, options.peers);
+            loops = new ChatLoop[Math.max(1, options.loops)];
+            metrics = new ChatMetrics(port, loops.length);
+            metrics.start(options.metrics);
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new ChatLoop(i, this);
+            }
+            if (options.log != null) {
+                // rebuild the rooms' history before anybody can add to it
+                log = new MessageLog(Paths.get(options.log), options.segment, options.keep, options.commit);
+                System.out.println(log.replay((room, msg) -> loopOf(room).restore(room, msg)));
+                log.start();
+            }
+            for (int i = 0; i < loops.length; i++) {
+                new Thread(loops[i], "chat-loop-" + i).start();
+            }
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(new InetSocketAddress(port), BACKLOG);
+            System.out.println("-------Server Started on port " + port + " with " + loops.length + " loop(s)-------");
+            new Thread(federation, "chat-federation").start();
 
+            ChatLoop lobby = loopOf(LOBBY);
             while (true) {// start server loop
-
-                Socket client = null;
-                // server checks if there is a new connection request
-                // if there is, it connects the client, and adds the client to the array
-                // of clients connected to the server.
-                // this uses a timeout so as to be non blocking.
-                try {
-                    client = server.accept();
-                    Connection c = new Connection(client);
-                    connections.add(c);
-                    System.out.println(
-                            "New client connected, The number of active connections is: " + connections.size());
-                } catch (SocketTimeoutException e) {
-                    /* move on */}
-                // check for new messages from clients
-                String msg = "";
-                for (int i = 0; i < connections.size(); i++) {
-                    msg = connections.get(i).readMessage();
-                    if (msg.length() > 0) {
-                        sendMessages(msg, i);
-                    }
-                    msg = "";
-                }
-                // check clients for errors, disconnect as needed
-                for (int i = 0; i < connections.size(); i++) {
-                    if (connections.get(i).disconnect) { // checks the boolean value in each connection
-                        // attempt to send client disconnect message
-                        connections.get(i).writeMessage("Error detected. Please reconnect to server. Goodbye.");
-                        connections.get(i).disconnect(); // cloeses streams and connection
-                        connections.remove(i); // remove connection
-                        System.out.println(
-                                "Client disconnected, The number of active connections is: " + connections.size());
-                        i--; // decrememnt so as not to skip connections.
-                    }
-                }
-
+                // connect the next client, and hand it to the loop that
+                // serves the lobby.
+                Connection c = new Connection(server.accept(), options.queue, options.slow);
+                metrics.accepts.increment();
+                c.writeMessage("-----Connection to chat server established-----");
+                lobby.admit(c, null);
+                System.out.println("New client connected, The number of active connections is: "
+                        + active.incrementAndGet());
             } // end server loop
         } catch (Exception e) {
             e.printStackTrace();
@@ -81,36 +203,82 @@ public class ChatServer {
     }
 
     /**
-     * Usage: sends message to every client currently connected.
+     * @return the loop that owns a room
+     */
+    ChatLoop loopOf(String room) {
+        return loops[Math.floorMod(room.hashCode(), loops.length)];
+    }
+
+    /** @return the message log, null if there is none */
+    MessageLog log() {
+        return log;
+    }
+
+    /** @return the server's counters */
+    ChatMetrics metrics() {
+        return metrics;
+    }
+
+    /** @return the links to peer servers */
+    Federation federation() {
+        return federation;
+    }
+
+    Options options() {
+        return options;
+    }
+
+    /** @return the number of clients connected, across every loop */
+    AtomicInteger active() {
+        return active;
+    }
+
+    /**
+     * Usage: finds the command in a message, if it is one.
      *
-     * @param msg    String to be ditributed to all clients.
-     * @param sender int representing the clients location in the vector, used to
-     *               keep the server from sending messages to sender
+     * @param msg a message as a client sent it, possibly "name: text"
+     * @return the command starting with '/', or null if msg is not one
      */
-    public void sendMessages(String msg, int sender) {
-        for (int client = 0; client < connections.size(); client++) {
-            if (client != sender) {
-                connections.get(client).writeMessage(msg);
-            } // do not send message to original sender
+    static String command(String msg) {
+        if (msg.startsWith("/")) {
+            return msg.trim();
+        }
+        int colon = msg.indexOf(": /");
+        if (colon < 0 || msg.lastIndexOf(' ', colon) >= 0) {
+            return null; // a name has no spaces
         }
+        return msg.substring(colon + 2).trim();
     }
 
     /**
-     * Usage: java ChatServer <port>
+     * Usage: java ChatServer [-queue bytes] [-slow drop|disconnect|coalesce]
+     * [-stats sec] [-metrics port] [-heartbeat sec] [-idle sec] [-loops n]
+     * [-history bytes] [-rooms n] [-log dir [-segment bytes] [-keep n]
+     * [-commit msec]] [-id name] [-peer host:port]... <port>
      *
-     * @param args Receives the port for clients to connect to in args[0].
+     * @param args Receives the options, then the port for clients to connect to.
      */
     public static void main(String[] args) {
+        Options options = new Options();
+        try {
+            args = Arrays.copyOfRange(args, options.parse(args), args.length);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            args = new String[0];
+        }
 
         if (args.length != 1) {
-            System.err.println("Syntax: java ChatClient <port>");
+            System.err.println("Syntax: java ChatServer [-queue bytes] [-slow drop|disconnect|coalesce] "
+                    + "[-stats sec] [-metrics port] [-heartbeat sec] [-idle sec] [-loops n] [-history bytes] "
+                    + "[-rooms n] [-log dir [-segment bytes] [-keep n] [-commit msec]] [-id name] "
+                    + "[-peer host:port]... <port>");
             System.exit(1);
         }
 
-        // convert args[2] into an integer that will be used as port.
+        // convert args[0] into an integer that will be used as port.
         int port = Integer.parseInt(args[0]);
 
-        // instantiate the main body of ChatClient application.
-        new ChatServer(port);
+        // instantiate the main body of ChatServer application.
+        new ChatServer(port, options);
     }
 }
\ No newline at end of file
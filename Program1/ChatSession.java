@@ -0,0 +1,499 @@
+/**
+ * ChatSession.java:<p>
+ * a connection to a ChatServer for programs rather than people: bots, load
+ * tests, and the console ChatClient alike.
+ *
+ * publish() queues a message and returns at once with a future that completes
+ * when the message has been written to the socket. A writer thread takes
+ * everything queued since its last pass and writes it out together through
+ * one buffer, so messages published faster than one round trip each go out
+ * many to a write call instead of one. A message can also be encoded once
+ * with encode() and published as bytes as often as wanted. A reader thread
+ * hands every message from the server to the subscribers, in order.
+ *
+ * Messages go in the binary frames described in SharedFrame. One longer than
+ * CHUNK bytes is sent in parts, which the server passes on as they come; the
+ * reader puts the parts of each stream back together before handing the
+ * message on. A session neither sends nor puts back together a message
+ * longer than LONGEST bytes.
+ *
+ * The session asks the server to number the messages of its room. If the
+ * connection is lost, whichever thread notices first connects again, goes back
+ * to the room, and asks for everything after the last message it saw; the
+ * writer then writes its last batch again, so a message is sent at least once.
+ * The session answers the server's heartbeats by itself.
+ *
+ * @author  Joshua Landron
+ * @version 19Oct2026
+ */
+import java.io.*; // for DataInputStream, DataOutputStream, IOException
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.*; // for CompletableFuture, CopyOnWriteArrayList, LinkedBlockingQueue
+import java.util.function.Consumer;
+
+public class ChatSession implements Closeable {
+	final static String LOBBY = "lobby"; // the room the server puts everyone in
+	final static String SEQ = "\0SEQ"; // asks the server for sequence numbers
+	final static String SINCE = "\0SINCE "; // asks for the messages after a seq
+	final static String PING = "\0PING"; // the server asking if I am still there
+	final static String PONG = "\0PONG"; // my answer
+	final static int RETRIES = 10; // #times to try reconnecting
+	final static long FIRST_RETRY = 250; // msec before the first try
+	final static int QUEUE = 64 * 1024; // #messages queued before publish() blocks
+	final static int BATCH = 1024; // #messages written out together at most
+	final static int BUFFER = 64 * 1024; // #bytes buffered each way
+	final static byte MESSAGE = 1; // a whole message
+	final static byte FIRST = 2; // the first part of a large message
+	final static byte PART = 3; // a part in the middle
+	final static byte LAST = 4; // the last part
+	final static int CHUNK = 64 * 1024; // #bytes of text per frame at most
+	final static int LONGEST = 16 * 1024 * 1024; // #bytes in a message at most, in one frame or in parts
+	final static long LINGER = 5000; // msec close() waits for the server to hang up
+
+	/**
+	 * A message waiting for the writer.
+	 */
+	private static class Outgoing {
+		final byte[] frame;
+		final CompletableFuture<Void> sent = new CompletableFuture<>();
+
+		Outgoing(byte[] frame) {
+			this.frame = frame;
+		}
+	}
+
+	private final String name; // the calling user name
+	private final String server; // the server ip name
+	private final int port; // the server port
+	private final LinkedBlockingQueue<Outgoing> queue = new LinkedBlockingQueue<>(QUEUE);
+	private final CopyOnWriteArrayList<Consumer<String>> subscribers = new CopyOnWriteArrayList<>();
+	private Socket socket; // a socket connection to a chat server
+	private DataInputStream in; // a filtered input stream from the server
+	private DataOutputStream out; // a filtered output stream to the server
+	private volatile String room = LOBBY; // the room I am in
+	private volatile long lastSeq = -1; // the last message of my room I have seen
+	private volatile boolean closing = false; // true once close() was called
+	private volatile boolean finished = false; // true once everything queued is written
+	private volatile boolean closed = false; // true once the connection is closed for good
+	private Thread reader; // hands messages to the subscribers
+	private boolean reconnecting = false; // true while a thread is reconnecting
+
+	/**
+	 * Connects to the server, announces the user, and starts the reader and
+	 * writer threads.
+	 *
+	 * @param name       the calling user name
+	 * @param server     a server ip name
+	 * @param port       a server port
+	 * @param subscriber gets every message from the server, the welcome
+	 *                   included; null if subscribe() will be called instead
+	 */
+	public ChatSession(String name, String server, int port, Consumer<String> subscriber) throws IOException {
+		this.name = name;
+		this.server = server;
+		this.port = port;
+		if (subscriber != null) {
+			subscribers.add(subscriber);
+		}
+		connect();
+		out.write(frame(name + " joined"));
+		out.write(frame(SEQ));
+		out.flush();
+		reader = new Thread(this::receive, "chat-session-reader");
+		reader.setDaemon(true);
+		reader.start();
+		Thread writer = new Thread(this::write, "chat-session-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Usage: connects to the server.
+	 */
+	private void connect() throws IOException {
+		socket = new Socket(server, port);
+		socket.setTcpNoDelay(true); // the writer batches by itself
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER));
+	}
+
+	/**
+	 * Usage: adds a callback for every message from the server, sequence
+	 * numbers and control frames taken out; called from the reader thread.
+	 */
+	public void subscribe(Consumer<String> subscriber) {
+		subscribers.add(subscriber);
+	}
+
+	/**
+	 * Usage: encodes a message from this user once, for publish(byte[]).
+	 *
+	 * @param text a message, or a command such as /join room
+	 * @return the message as it goes over the wire, in parts if it is long
+	 * @throws IllegalArgumentException if it is longer than LONGEST bytes
+	 */
+	public byte[] encode(String text) {
+		return frame(name + ": " + text);
+	}
+
+	private static byte[] frame(String msg) {
+		byte[] text = msg.getBytes(StandardCharsets.UTF_8);
+		if (text.length > LONGEST) {
+			throw new IllegalArgumentException("message too long: " + text.length + " bytes");
+		}
+		if (text.length <= CHUNK) {
+			return ByteBuffer.allocate(5 + text.length).put(MESSAGE).putInt(text.length).put(text).array();
+		}
+		int parts = (text.length + CHUNK - 1) / CHUNK;
+		ByteBuffer frames = ByteBuffer.allocate(parts * 9 + text.length);
+		for (int i = 0; i < parts; i++) {
+			int length = Math.min(CHUNK, text.length - i * CHUNK);
+			frames.put(i == 0 ? FIRST : i == parts - 1 ? LAST : PART).putInt(4 + length);
+			frames.putInt(0).put(text, i * CHUNK, length); // the server numbers the stream
+		}
+		return frames.array();
+	}
+
+	/**
+	 * Usage: sends a message from this user; commands that change rooms are
+	 * followed, and numbering starts afresh in the new room.
+	 *
+	 * @param text a message, or a command such as /join room
+	 * @return a future completed once the message is written to the socket
+	 */
+	public CompletableFuture<Void> publish(String text) throws IOException {
+		CompletableFuture<Void> sent = publish(encode(text));
+		if (moved(text)) {
+			publish(frame(SEQ));
+		}
+		return sent;
+	}
+
+	/**
+	 * Usage: sends a message encoded by encode(); blocks while QUEUE messages
+	 * are already waiting.
+	 *
+	 * @param frame the message as it goes over the wire
+	 * @return a future completed once the message is written to the socket
+	 */
+	public CompletableFuture<Void> publish(byte[] frame) throws IOException {
+		if (closing || closed) {
+			throw new IOException("session closed");
+		}
+		Outgoing o = new Outgoing(frame);
+		try {
+			queue.put(o);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		return o.sent;
+	}
+
+	/**
+	 * Writes out what is published in batches until the session is closed;
+	 * runs in its own thread.
+	 */
+	private void write() {
+		ArrayList<Outgoing> batch = new ArrayList<>(BATCH);
+		while (!closed) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(batch, BATCH - 1);
+			while (true) {
+				Socket s;
+				DataOutputStream o;
+				synchronized (this) {
+					s = socket;
+					o = out;
+				}
+				try {
+					for (Outgoing m : batch) {
+						o.write(m.frame);
+					}
+					o.flush();
+					break;
+				} catch (IOException e) {
+					if (finished) {
+						fail(batch, e); // the server is hanging up on purpose
+						break;
+					}
+					try {
+						reconnect(s);
+					} catch (IOException x) {
+						fail(batch, x);
+						break;
+					}
+				}
+			}
+			for (Outgoing m : batch) {
+				m.sent.complete(null);
+			}
+			batch.clear();
+		}
+		fail(batch, new IOException("session closed"));
+		fail(queue, new IOException("session closed"));
+	}
+
+	private static void fail(Iterable<Outgoing> messages, IOException e) {
+		for (Outgoing m : messages) {
+			m.sent.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Hands each message from the server to the subscribers until the session
+	 * is closed, reconnecting whenever the connection is lost; runs in its own
+	 * thread.
+	 */
+	private void receive() {
+		HashMap<Integer, ByteArrayOutputStream> parts = new HashMap<>(); // by stream
+		Socket current = null;
+		String here = null; // the room the parts were sent to
+		while (!closed) {
+			Socket s;
+			DataInputStream i;
+			synchronized (this) {
+				s = socket;
+				i = in;
+			}
+			if (s != current || !room.equals(here)) {
+				parts.clear(); // their ends went with the old connection or room
+				current = s;
+				here = room;
+			}
+			try {
+				// blocks until the server sends something, or the connection
+				// ends (EOF) or breaks
+				String str = read(i, parts);
+				if (str == null) {
+					continue; // a part of a message not finished yet
+				}
+				show(str);
+				if (str.startsWith("Error detected.")) {
+					reconnect(s);
+				}
+			} catch (IOException e) {
+				if (closed || finished) {
+					break; // the server hung up after my last message
+				}
+				try {
+					reconnect(s);
+				} catch (IOException x) {
+					for (Consumer<String> subscriber : subscribers) {
+						subscriber.accept(x.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Usage: reads one frame from the server.
+	 *
+	 * @param parts the large messages being put back together, by stream; a
+	 *              FIRST part starts its stream afresh, and one that grows
+	 *              longer than LONGEST bytes is dropped
+	 * @return the message the frame finished, or null if it did not finish one
+	 */
+	private static String read(DataInputStream in, HashMap<Integer, ByteArrayOutputStream> parts)
+			throws IOException {
+		byte type = in.readByte();
+		int length = in.readInt();
+		if (length < 0 || length > LONGEST || (type != MESSAGE && length < 4)) {
+			throw new IOException("not a frame: type " + type + ", " + length + " bytes");
+		}
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		if (type == MESSAGE) {
+			return new String(payload, StandardCharsets.UTF_8);
+		}
+		int stream = ByteBuffer.wrap(payload).getInt();
+		if (type == FIRST) {
+			parts.put(stream, new ByteArrayOutputStream());
+		}
+		ByteArrayOutputStream message = parts.get(stream);
+		if (message == null) {
+			return null; // started before I was in the room
+		}
+		if (message.size() + length - 4 > LONGEST) {
+			parts.remove(stream); // the rest of it is dropped as well
+			return null;
+		}
+		message.write(payload, 4, length - 4);
+		if (type != LAST) {
+			return null;
+		}
+		parts.remove(stream);
+		return message.toString(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Connects to the server again after the connection was lost, returns to
+	 * my room, and asks for the messages I missed. Whichever thread notices
+	 * first reconnects; the other finds a new socket already there.
+	 *
+	 * @param broken the socket that was lost
+	 * @throws IOException if the server cannot be reached after RETRIES tries,
+	 *                     which closes the session
+	 */
+	private synchronized void reconnect(Socket broken) throws IOException {
+		while (reconnecting) {
+			try {
+				wait(); // the other thread is at it
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+		if (closed || finished) {
+			throw new IOException("session closed");
+		}
+		if (socket != broken) {
+			return;
+		}
+		reconnecting = true;
+		try {
+			socket.close();
+			long backoff = FIRST_RETRY;
+			for (int i = 0; i < RETRIES && !closed; i++) {
+				try {
+					wait(backoff); // close() may wake me up
+					connect();
+					out.write(frame(name + " rejoined"));
+					if (!room.equals(LOBBY)) {
+						out.write(frame(name + ": /join " + room));
+					}
+					out.write(frame(lastSeq >= 0 ? SINCE + lastSeq : SEQ));
+					out.flush();
+					return;
+				} catch (IOException e) {
+					backoff *= 2; // the server may still be coming back
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			if (closed) {
+				throw new IOException("session closed");
+			}
+			abort();
+			throw new IOException("cannot reconnect to " + server + ":" + port);
+		} finally {
+			reconnecting = false;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Usage: leaves the chat once every message published so far is written,
+	 * and closes the connection after the server has read them; messages
+	 * published from now on are refused. Blocks until then, but no more than
+	 * LINGER msec for the server to hang up.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closing || closed) {
+				return;
+			}
+			closing = true;
+		}
+		Outgoing last = new Outgoing(new byte[0]);
+		try {
+			queue.put(last);
+			last.sent.get(); // everything before it is written too
+			finished = true;
+			Socket s;
+			synchronized (this) {
+				s = socket;
+			}
+			// the server reads what is left, sees EOF and hangs up, which the
+			// reader then sees
+			s.shutdownOutput();
+			reader.join(LINGER);
+		} catch (InterruptedException | ExecutionException | IOException e) {
+			/* closing anyway */}
+		abort();
+	}
+
+	/**
+	 * Usage: leaves the chat and closes the connection at once; messages not
+	 * written yet fail.
+	 */
+	public void abort() {
+		closed = true;
+		Socket s;
+		synchronized (this) {
+			notifyAll(); // stop waiting to reconnect
+			s = socket;
+		}
+		try {
+			s.close();
+		} catch (IOException e) {
+			/* closing anyway */}
+		queue.offer(new Outgoing(new byte[0])); // wakes up the writer
+	}
+
+	/**
+	 * Usage: waits until the session is closed, by close() or because the
+	 * server could not be reached again.
+	 */
+	public synchronized void awaitClose() throws InterruptedException {
+		while (!closed) {
+			wait();
+		}
+	}
+
+	/** @return true once the session is closed */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Notes the room I am in if I typed a command that changes it.
+	 *
+	 * @return true if I changed rooms
+	 */
+	private boolean moved(String str) {
+		if (str.startsWith("/join ") && str.length() > 6) {
+			room = str.substring(6).trim();
+		} else if (str.equals("/leave")) {
+			room = LOBBY;
+		} else {
+			return false;
+		}
+		lastSeq = -1;
+		return true;
+	}
+
+	/**
+	 * Hands a message from the server to the subscribers, noting its sequence
+	 * number if it has one. Control frames are not handed on.
+	 */
+	private void show(String str) {
+		if (str.equals(PING)) {
+			// without waiting for room: anything else queued answers as well
+			queue.offer(new Outgoing(frame(PONG)));
+			return;
+		}
+		if (str.startsWith(SEQ + " ")) {
+			lastSeq = Long.parseLong(str.substring(SEQ.length() + 1).trim());
+			return;
+		}
+		if (str.startsWith("\0")) {
+			int space = str.indexOf(' ');
+			if (space <= 1 || !Character.isDigit(str.charAt(1))) {
+				return;
+			}
+			lastSeq = Long.parseLong(str.substring(1, space));
+			str = str.substring(space + 1);
+		}
+		for (Consumer<String> subscriber : subscribers) {
+			subscriber.accept(str);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * ChatWire.java:<p>
+ * the binary frame format Chat members use to talk to each other.
+ *
+ * <pre>
+ * frame   := varint(length) payload           length = #bytes of payload
+ * payload := MESSAGE  varint(origin)  varint(#members)  varint(clock[0]) ... varint(clock[n-1])  text
+ *          | DELTA    varint(origin)  varint(#members)  varint(#changed)  (varint(index) varint(clock[index]))*  text
+ * </pre>
+ *
+ * type is one byte, origin is the rank of the member that broadcast the
+ * message (not necessarily the neighbor that relayed it), each number is an
+ * unsigned LEB128 varint (one byte for values below 128), and text is the rest
+ * of the payload in UTF-8. A MESSAGE to a 4-member chat therefore costs 8
+ * bytes on top of its text, where two serialized objects cost well over 100,
+ * and each frame is encoded once and written to every peer with a single
+ * write.
+ *
+ * A DELTA frame carries only the clock entries that differ from the last clock
+ * sent over the same connection (differential clocks in the style of Singhal
+ * and Kshemkalyani). Both ends of a connection keep that last clock, and since
+ * TCP delivers frames in order the receiver rebuilds the full vector from it.
+ * In a large group a member usually has seen only a few new messages between
+ * two of its own, so the overhead no longer grows with the group size.
+ *
+ * @author  Joshua Landron
+ * @version 19Oct2026
+ */
+import java.io.*; // for IOException
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+class ChatWire {
+	final static byte MESSAGE = 1; // a chat message stamped with a full vector clock
+	final static byte DELTA = 2; // a chat message stamped with the changed clock entries
+
+	/**
+	 * A decoded message.
+	 */
+	static class Message {
+		final int origin;
+		final int[] stamps;
+		final String text;
+
+		Message(int origin, int[] stamps, String text) {
+			this.origin = origin;
+			this.stamps = stamps;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Encodes a stamp and a message into one frame, ready to be written.
+	 */
+	static ByteBuffer encode(int origin, int[] stamps, String message) {
+		return encode(origin, stamps, message.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Encodes a stamp and an already UTF-8 encoded message into one frame.
+	 */
+	static ByteBuffer encode(int origin, int[] stamps, byte[] text) {
+		int length = 1 + varintSize(origin) + varintSize(stamps.length) + text.length;
+		for (int stamp : stamps)
+			length += varintSize(stamp);
+		ByteBuffer frame = ByteBuffer.allocate(varintSize(length) + length);
+		writeVarint(frame, length);
+		frame.put(MESSAGE);
+		writeVarint(frame, origin);
+		writeVarint(frame, stamps.length);
+		for (int stamp : stamps)
+			writeVarint(frame, stamp);
+		frame.put(text);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Encodes a stamp as a DELTA against the last clock sent over a connection.
+	 *
+	 * @param origin   the member that broadcast the message
+	 * @param stamps   the full clock to send
+	 * @param lastSent the last clock sent over this connection, updated to
+	 *                 stamps
+	 * @param text     the UTF-8 encoded message
+	 */
+	static ByteBuffer encodeDelta(int origin, int[] stamps, int[] lastSent, byte[] text) {
+		int changed = 0;
+		int length = 1 + varintSize(origin) + varintSize(stamps.length) + text.length;
+		for (int i = 0; i < stamps.length; i++)
+			if (stamps[i] != lastSent[i]) {
+				changed++;
+				length += varintSize(i) + varintSize(stamps[i]);
+			}
+		length += varintSize(changed);
+		ByteBuffer frame = ByteBuffer.allocate(varintSize(length) + length);
+		writeVarint(frame, length);
+		frame.put(DELTA);
+		writeVarint(frame, origin);
+		writeVarint(frame, stamps.length);
+		writeVarint(frame, changed);
+		for (int i = 0; i < stamps.length; i++)
+			if (stamps[i] != lastSent[i]) {
+				writeVarint(frame, i);
+				writeVarint(frame, stamps[i]);
+				lastSent[i] = stamps[i];
+			}
+		frame.put(text);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Decodes the payload of one frame.
+	 *
+	 * @param lastReceived the last clock received over this connection, used to
+	 *                     rebuild a DELTA and updated to the decoded clock
+	 */
+	static Message decode(ByteBuffer payload, int[] lastReceived) throws IOException {
+		byte type = payload.get();
+		int origin = readVarint(payload);
+		int members = readVarint(payload);
+		if (origin >= members)
+			throw new IOException("origin " + origin + " out of range");
+		if (members != lastReceived.length)
+			throw new IOException("clock of " + members + " members, expected " + lastReceived.length);
+		if (type == MESSAGE) {
+			for (int i = 0; i < members; i++)
+				lastReceived[i] = readVarint(payload);
+		} else if (type == DELTA) {
+			int changed = readVarint(payload);
+			for (int k = 0; k < changed; k++) {
+				int i = readVarint(payload);
+				if (i >= members)
+					throw new IOException("clock index " + i + " out of range");
+				lastReceived[i] = readVarint(payload);
+			}
+		} else {
+			throw new IOException("unknown frame type " + type);
+		}
+		int[] stamps = lastReceived.clone();
+		String text = new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(),
+				StandardCharsets.UTF_8);
+		return new Message(origin, stamps, text);
+	}
+
+	/**
+	 * Reads the length at the start of a frame, if all of it has arrived.
+	 *
+	 * @return the payload length, with in positioned just after it, or -1 with
+	 *         in left untouched if the length is incomplete
+	 */
+	static int tryReadLength(ByteBuffer in) throws IOException {
+		int start = in.position();
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (!in.hasRemaining()) {
+				in.position(start);
+				return -1;
+			}
+			byte b = in.get();
+			value |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IOException("malformed frame length");
+	}
+
+	static void writeVarint(ByteBuffer out, int value) {
+		while ((value & ~0x7f) != 0) {
+			out.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	static int readVarint(ByteBuffer in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.get();
+			value |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IOException("malformed varint");
+	}
+
+	/** @return #bytes writeVarint uses for value */
+	static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7f) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+}
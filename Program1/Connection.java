@@ -3,79 +3,359 @@
  * Connection.java
  * COnnection Object that maintains a TCP connection between a client and the chat server
  *
+ * The connection is non-blocking and is served by the Selector of the ChatLoop
+ * that owns its room; it moves to another loop's Selector when it changes room.
+ * Messages travel in the binary frames described in SharedFrame: a type byte,
+ * a 4-byte length and the payload. Incoming bytes collect in a read buffer
+ * until a whole frame is there; outgoing frames wait in a
+ * queue until the server's loop writes them, so a slow client never stalls the
+ * server or the other clients.
+ *
+ * The queue is bounded. When a client falls so far behind that a message would
+ * take it over its limit, the server's slow-consumer policy decides:
+ * <ul>
+ * <li>DROP: the new message is thrown away;
+ * <li>DISCONNECT: the client is disconnected;
+ * <li>COALESCE: the oldest messages not yet started are thrown away until the
+ * new one fits, and the client is told how many it missed.
+ * </ul>
+ * A part of a large message is never thrown away on its own, since the rest
+ * would make no sense without it: a client with no room for one is
+ * disconnected, whatever the policy.
+ * Each connection keeps its queue depth, high-water mark and losses for the
+ * server to report.
+ *
+ * A message for many clients is encoded once into a SharedFrame; the queue
+ * holds a view of it and a reference that is released once it is written or
+ * thrown away. As many queued views as the socket takes go out in one
+ * gathering write.
+ *
  * @author  Joshua Landron (CSS434 Spring 2019, University of Washington, Bothell)
  * @since   4/12/19
- * @version 4/14/19
+ * @version 10/19/26
  */
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 
 class Connection {
-    public DataInputStream in;
-    public DataOutputStream out;
-    public Socket clientSocket;
+    final static int GATHER = 64; // #messages written by one system call at most
+
+    // the buffers of one gathering write, for the thread flushing
+    private final static ThreadLocal<ByteBuffer[]> gather = ThreadLocal.withInitial(() -> new ByteBuffer[GATHER]);
+
+    /**
+     * What to do with a client whose outbound queue is full.
+     */
+    enum Policy {
+        DROP, DISCONNECT, COALESCE
+    }
+
+    public SocketChannel clientSocket;
     public boolean disconnect = false;
+    public String name; // the client's address, for reports
+    public String room = ChatServer.LOBBY; // the room the client is in
+    public boolean sequenced = false; // true if the client asked for sequence numbers
+    public long heard = System.currentTimeMillis(); // when the client last sent anything
+    public int stream = 0; // the large message the client is sending in parts, 0 for none
+    private boolean paused = false; // true while the client's messages are not read
+    // when to ping or disconnect the client if it stays silent
+    final TimerWheel.Timer<Connection> timer = new TimerWheel.Timer<>(this);
+    private SelectionKey key;
+    private ByteBuffer in = ByteBuffer.allocate(8 * 1024); // bytes read, not yet a whole message
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>(); // messages not yet written
+    private final ArrayDeque<SharedFrame> frames = new ArrayDeque<>(); // the frame each of them views
+    private final int limit; // #bytes the queue may hold
+    private final Policy policy;
+    private long queuedBytes = 0; // #bytes in the queue
+    private long highWater = 0; // the most queuedBytes has ever been
+    private long dropped = 0; // #messages thrown away
+    private long skipped = 0; // #messages coalesced away the client has not been told of
 
     /**
      * Creates a TCP connection between client and server. Connections should be
      * maintained and used by ChatServer
-     * 
-     * @param aClientSocket a socket built by the ChatServer to be maintained in
+     *
+     * @param aClientSocket a socket accepted by the ChatServer to be maintained in
      *                      this Connection object
+     * @param limit         #bytes of messages that may wait for this client
+     * @param policy        what to do when a message does not fit in them
      */
-    public Connection(Socket aClientSocket) {
+    public Connection(SocketChannel aClientSocket, int limit, Policy policy) {
+        this.limit = limit;
+        this.policy = policy;
         try {
             clientSocket = aClientSocket;
-            in = new DataInputStream(clientSocket.getInputStream());
-            out = new DataOutputStream(clientSocket.getOutputStream());
-            out.writeUTF("-----Connection to chat server established-----");
-            out.flush();
+            name = String.valueOf(clientSocket.getRemoteAddress());
+            clientSocket.configureBlocking(false);
+            clientSocket.setOption(StandardSocketOptions.TCP_NODELAY, true);
         } catch (Exception e) {
             e.printStackTrace();
+            disconnect = true;
+        }
+    }
+
+    /**
+     * Usage: starts serving the connection from a loop's selector and writes
+     * out whatever is queued. Must be called from the thread that runs the
+     * selector.
+     *
+     * @param selector the selector of the loop that serves the client from now on
+     */
+    protected void register(Selector selector) {
+        try {
+            key = clientSocket.register(selector, SelectionKey.OP_READ, this);
+            flush();
+        } catch (Exception e) {
+            disconnect = true; // error occured, tell server to disconnect
         }
     }
 
     /**
-     * Usage: reads a message that was sent from a client.
+     * Usage: stops serving the connection from its current selector, before
+     * handing it to another loop. Must be called from the thread that runs the
+     * selector.
+     */
+    protected void detach() {
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+    }
+
+    /**
+     * Usage: reads the messages that were sent from a client.
      *
-     * @return message to be sent to ChatServer
+     * @param messages receives every whole message read as a String, and every
+     *                 part of a large one as a SharedFrame for the caller to
+     *                 release(), in the order they came
      */
-    protected String readMessage() {
-        String msg = "";
+    protected void readMessages(List<Object> messages) {
         try {
-            if (in.available() > 0) {
-                msg = in.readUTF();
+            int n = clientSocket.read(in);
+            if (n < 0) {
+                disconnect = true; // the client has gone
+            } else if (n > 0) {
+                heard = System.currentTimeMillis();
             }
+            in.flip();
+            while (in.remaining() >= SharedFrame.HEADER) {
+                int at = in.position();
+                byte type = in.get(at);
+                int length = in.getInt(at + 1);
+                if (type < SharedFrame.MESSAGE || type > SharedFrame.LAST || length < 0
+                        || length > SharedFrame.MAX_FRAME || (type != SharedFrame.MESSAGE && length < 4)) {
+                    disconnect = true; // not speaking our protocol
+                    break;
+                }
+                if (in.remaining() < SharedFrame.HEADER + length) {
+                    if (SharedFrame.HEADER + length > in.capacity()) {
+                        // the frame cannot fit: make room for it
+                        ByteBuffer bigger = ByteBuffer.allocate(SharedFrame.HEADER + length);
+                        bigger.put(in);
+                        in = bigger;
+                        in.flip();
+                    }
+                    break;
+                }
+                if (type == SharedFrame.MESSAGE) {
+                    messages.add(new String(in.array(), in.arrayOffset() + at + SharedFrame.HEADER, length,
+                            StandardCharsets.UTF_8));
+                } else {
+                    messages.add(SharedFrame.copy(in.slice(at, SharedFrame.HEADER + length)));
+                }
+                in.position(at + SharedFrame.HEADER + length);
+            }
+            in.compact();
         } catch (Exception e) {
             disconnect = true; // error occured, tell server to disconnect
         }
-        return msg;
     }
 
     /**
-     * Usage: sends message to connected client
+     * Usage: queues message for the connected client; the server's loop writes
+     * it out with flush()
      *
      * @param msg String to be send to client
+     * @return true if the queue was empty, i.e. the connection now needs a flush
+     */
+    protected boolean writeMessage(String msg) {
+        try {
+            SharedFrame frame = SharedFrame.encode(msg);
+            boolean wasEmpty = send(frame);
+            frame.release();
+            return wasEmpty;
+        } catch (Exception e) {
+            disconnect = true; // error occured, tell server to disconnect
+            return false;
+        }
+    }
+
+    /**
+     * Usage: queues a message encoded once for many clients, applying the
+     * slow-consumer policy if it does not fit. The connection takes its own
+     * reference to the frame.
+     *
+     * @param frame the message to send
+     * @return true if the queue was empty, i.e. the connection now needs a flush
      */
-    protected void writeMessage(String msg) {
+    protected boolean send(SharedFrame frame) {
+        boolean wasEmpty = out.isEmpty();
+        int length = frame.length();
+        if (queuedBytes + length > limit) {
+            if (policy == Policy.DISCONNECT) {
+                disconnect = true;
+                return false;
+            }
+            if (policy == Policy.DROP || length > limit) {
+                if (frame.part()) {
+                    disconnect = true; // the rest of its message cannot go either
+                    return false;
+                }
+                dropped++;
+                return false;
+            }
+            // COALESCE: the message being written must go out whole, the
+            // other whole messages may go
+            Iterator<ByteBuffer> oldest = out.iterator();
+            Iterator<SharedFrame> owners = frames.iterator();
+            if (oldest.hasNext() && out.peek().position() > 0) {
+                oldest.next();
+                owners.next();
+            }
+            while (queuedBytes + length > limit && oldest.hasNext()) {
+                ByteBuffer view = oldest.next();
+                SharedFrame owner = owners.next();
+                if (owner.part()) {
+                    continue;
+                }
+                queuedBytes -= view.remaining();
+                oldest.remove();
+                owner.release();
+                owners.remove();
+                dropped++;
+                skipped++;
+            }
+            if (queuedBytes + length > limit && frame.part()) {
+                disconnect = true; // nothing left to make room with
+                return false;
+            }
+        }
+        out.add(frame.view());
+        frames.add(frame.retain());
+        queuedBytes += length;
+        highWater = Math.max(highWater, queuedBytes);
+        return wasEmpty;
+    }
+
+    /**
+     * Usage: writes queued messages until the queue is empty or the socket is
+     * full, and asks the selector for OP_WRITE only while something is left
+     */
+    protected void flush() {
+        ByteBuffer[] heads = gather.get();
+        try {
+            while (!out.isEmpty() || skipped > 0) {
+                if (skipped > 0 && (out.isEmpty() || out.peek().position() == 0)) {
+                    // tell the client what it missed before what comes next
+                    SharedFrame notice = SharedFrame
+                            .encode("-----" + skipped + " message(s) skipped, connection too slow-----");
+                    out.addFirst(notice.view());
+                    frames.addFirst(notice);
+                    queuedBytes += notice.length();
+                    skipped = 0;
+                }
+                int n = 0;
+                long wanted = 0;
+                for (ByteBuffer b : out) {
+                    heads[n++] = b;
+                    wanted += b.remaining();
+                    if (n == heads.length) {
+                        break;
+                    }
+                }
+                long written = clientSocket.write(heads, 0, n);
+                queuedBytes -= written;
+                while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                    out.poll();
+                    frames.poll().release();
+                }
+                if (written < wanted) {
+                    break; // the socket buffer is full
+                }
+            }
+            interest();
+        } catch (Exception e) {
+            disconnect = true; // error occured, tell server to disconnect
+        } finally {
+            Arrays.fill(heads, null); // do not keep written frames reachable
+        }
+    }
+
+    /**
+     * Usage: stops or starts reading from the client, so that it sends no
+     * faster than the others can take.
+     */
+    protected void pause(boolean paused) {
+        this.paused = paused;
         try {
-            out.writeUTF(msg);
-            out.flush();
+            interest();
         } catch (Exception e) {
             disconnect = true; // error occured, tell server to disconnect
         }
     }
 
     /**
-     * Usage: disconnects TCP connection and cleans up streams if error is detected
+     * Usage: asks the selector for OP_READ unless paused, and for OP_WRITE
+     * while something is queued.
+     */
+    private void interest() {
+        if (key != null && key.isValid()) {
+            key.interestOps((paused ? 0 : SelectionKey.OP_READ) | (out.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+    }
+
+    /** @return #messages waiting to be written */
+    protected int queued() {
+        return out.size();
+    }
+
+    /** @return #bytes waiting to be written */
+    protected long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /** @return the most bytes that have ever waited to be written */
+    protected long highWater() {
+        return highWater;
+    }
+
+    /** @return #messages thrown away because the queue was full */
+    protected long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Usage: disconnects TCP connection and cleans up buffers if error is detected
      */
     protected void disconnect() {
+        while (!frames.isEmpty()) {
+            frames.poll().release();
+        }
+        out.clear();
         try {
-            out.close();
-            in.close();
+            if (key != null) {
+                key.cancel();
+            }
             clientSocket.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,482 @@
+
+/**
+ * Federation.java
+ * links a ChatServer to its peer servers, so clients connected to any of them
+ * talk in the same rooms.
+ *
+ * Servers keep persistent links to each other over the same port and framing
+ * clients use. Control messages start with a NUL character, which no ChatClient
+ * user can type:
+ *
+ * <pre>
+ * hello   := "\0PEER " origin " " seq
+ * message := "\0MSG " origin " " seq "\n" room "\n" text
+ * </pre>
+ *
+ * where origin names the server a message was first sent to (its id and the
+ * time it started, so a restarted server is a new origin) and seq counts that
+ * server's messages; a hello carries the seq of the next message its server
+ * will send. A server sends every message its clients send to all its
+ * links, and passes every message it receives on to its other links, so any
+ * connected graph of links reaches every server. A message can therefore
+ * arrive more than once and by paths of different lengths: each server
+ * delivers the messages of each origin once and in seq order, holding back a
+ * message until the ones before it have arrived. It starts each origin at the
+ * seq its hello announced, or, for an origin it only hears of through
+ * another server, at the first message it sees. Messages still queued or in
+ * flight when a link breaks are lost, so a gap that is not filled within GAP
+ * msec is skipped; the origins' deadlines are kept in a TimerWheel.
+ *
+ * The links are served by one thread with its own Selector, which also numbers
+ * the messages the loops publish, so they go out in seq order. A server dials
+ * the peers it was given with -peer and dials them again whenever the link
+ * breaks; the peer side sees a client whose first message is a hello, and
+ * the ChatLoop that received it hands it over here.
+ *
+ * A link takes no frame larger than a client's, so a message that does not
+ * fit in one with its header is relayed in parts, which the other side puts
+ * back together. A message a client sent in parts is too large to relay and
+ * reaches the clients of the server it was sent to only.
+ *
+ * @author  Joshua Landron (CSS434 Spring 2019, University of Washington, Bothell)
+ * @since   10/19/26
+ * @version 10/19/26
+ */
+import java.io.*; // for IOException
+import java.net.*; // for InetSocketAddress
+import java.nio.channels.*; // for Selector, SelectionKey, SocketChannel
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class Federation implements Runnable {
+    final static String HELLO = "\0PEER ";
+    final static String MESSAGE = "\0MSG ";
+    final static long FIRST_RETRY = 100; // msec before dialing a peer again
+    final static long LAST_RETRY = 5000; // msec between dials at most
+    final static int HOLD = 4096; // #messages held back per origin before giving up on a gap
+    final static long GAP = 2000; // msec a gap is waited for before giving up on it
+    final static long GAP_TICK = 100; // msec per tick of the gaps' timers
+
+    /**
+     * A link to a peer server, or a peer this server dials.
+     */
+    private static class Link {
+        InetSocketAddress address; // where to dial the peer, null if it dials us
+        Connection connection; // null while not connected
+        SocketChannel dialing; // the connection being set up
+        long backoff = FIRST_RETRY;
+        long retryAt = 0; // when to dial again, 0 if not waiting
+        ByteArrayOutputStream partial; // the message coming in parts, null if none
+        int stream; // the stream of its parts
+    }
+
+    /**
+     * What has been delivered from one origin.
+     */
+    private static class Origin {
+        final String name; // the origin's id
+        long next = -1; // the seq to deliver next, -1 before the first one
+        TreeMap<Long, String[]> held = new TreeMap<>(); // seq -> { room, text }
+        final TimerWheel.Timer<Origin> timer = new TimerWheel.Timer<>(this); // while held is not empty
+
+        Origin(String name) {
+            this.name = name;
+        }
+    }
+
+    private final ChatServer server;
+    private final Selector selector;
+    private final String origin; // this server's name in message IDs
+    private volatile long seq = 0; // #messages this server has sent, numbered on its thread
+    private final ArrayList<Link> links = new ArrayList<>();
+    private final HashMap<String, Origin> origins = new HashMap<>();
+    private final TimerWheel<Origin> gaps; // when to give up on each origin's gap
+    // messages from the loops to send to every link, { room, text }, and links
+    // handed over by them
+    private final ConcurrentLinkedQueue<String[]> outbox = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Object[]> adopted = new ConcurrentLinkedQueue<>();
+    private final ArrayList<Connection> pending = new ArrayList<>();
+    private int streams = 0; // #messages relayed in parts
+    // for reports from the loops' threads
+    private volatile int up = 0; // #links connected
+    private volatile long received = 0; // #messages received from a link for the first time
+    private volatile long duplicates = 0; // #messages received more than once
+
+    /**
+     * @param server the server whose rooms the messages are delivered to
+     * @param id     this server's name, unique in the cluster
+     * @param peers  the servers to dial
+     */
+    Federation(ChatServer server, String id, List<InetSocketAddress> peers) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.origin = id + "@" + System.currentTimeMillis();
+        this.gaps = new TimerWheel<>(GAP_TICK, (int) (GAP / GAP_TICK) + 1, System.currentTimeMillis());
+        for (InetSocketAddress a : peers) {
+            Link link = new Link();
+            link.address = a;
+            links.add(link);
+        }
+    }
+
+    /**
+     * Usage: sends a message a local client sent to every peer server; called
+     * from any loop.
+     *
+     * @param room the room it was sent to
+     * @param msg  the message
+     */
+    void publish(String room, String msg) {
+        if (up == 0) {
+            return; // nobody to send it to
+        }
+        outbox.add(new String[] { room, msg });
+        selector.wakeup();
+    }
+
+    /**
+     * Usage: takes over a client that turned out to be a peer server; called
+     * from the loop that received its hello.
+     *
+     * @param peer     the peer's connection, detached from the loop
+     * @param messages what it sent, from its hello on
+     */
+    void adopt(Connection peer, List<Object> messages) {
+        adopted.add(new Object[] { peer, messages });
+        selector.wakeup();
+    }
+
+    /**
+     * Serves the links in a "while" loop that dials the peers not connected,
+     * relays what each link sends, writes out what is queued for each, and
+     * drops the links that broke.
+     */
+    public void run() {
+        try {
+            ArrayList<Object> messages = new ArrayList<>();
+            while (true) {// start loop
+                long now = System.currentTimeMillis();
+                long wait = 0;
+                for (Link link : links) {
+                    if (link.address != null && link.connection == null && link.dialing == null) {
+                        if (link.retryAt <= now) {
+                            dial(link);
+                        } else {
+                            wait = (wait == 0) ? link.retryAt - now : Math.min(wait, link.retryAt - now);
+                        }
+                    }
+                }
+                if (gaps.size() > 0) {
+                    long tick = gaps.untilNextTick(now);
+                    wait = (wait == 0) ? tick : Math.min(wait, tick);
+                }
+                selector.select(wait);
+
+                // take the links handed over by the loops
+                Object[] a;
+                while ((a = adopted.poll()) != null) {
+                    Link link = new Link();
+                    link.connection = (Connection) a[0];
+                    links.add(link);
+                    link.connection.register(selector);
+                    link.connection.writeMessage(hello());
+                    pending.add(link.connection);
+                    up++;
+                    System.out.println("Peer link up: " + link.connection.name);
+                    @SuppressWarnings("unchecked")
+                    List<Object> early = (List<Object>) a[1];
+                    receive(link, early);
+                }
+
+                // number what the local clients sent, and send it to every link
+                String[] m;
+                while ((m = outbox.poll()) != null) {
+                    if (up == 0) {
+                        continue; // nobody to send it to
+                    }
+                    try {
+                        relay(SharedFrame.split(MESSAGE + origin + " " + seq + "\n" + m[0] + "\n" + m[1]), null);
+                        seq++;
+                    } catch (UTFDataFormatException e) {
+                        e.printStackTrace(); // too long with its header to relay
+                    }
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.attachment() instanceof Link) {
+                        connected((Link) key.attachment());
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    if (key.isWritable()) {
+                        c.flush();
+                    }
+                    if (key.isReadable()) {
+                        c.readMessages(messages);
+                        for (Link link : links) {
+                            if (link.connection == c) {
+                                receive(link, messages);
+                            }
+                        }
+                        messages.clear();
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                // skip the gaps that have waited too long
+                gaps.advance(System.currentTimeMillis(), this::skip);
+
+                // write out what was queued for each link
+                for (Connection c : pending) {
+                    c.flush();
+                }
+                pending.clear();
+
+                // drop the links that broke, and dial the ones we dial again
+                links.removeIf(link -> {
+                    if (link.connection == null || !link.connection.disconnect) {
+                        return false;
+                    }
+                    System.out.println("Peer link down: " + link.connection.name);
+                    up--;
+                    link.connection.disconnect();
+                    link.connection = null;
+                    link.partial = null;
+                    if (link.address == null) {
+                        return true; // the peer dials us again
+                    }
+                    link.retryAt = System.currentTimeMillis() + link.backoff;
+                    return false;
+                });
+            } // end loop
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Usage: starts a non-blocking connection to a peer.
+     */
+    private void dial(Link link) {
+        try {
+            link.dialing = SocketChannel.open();
+            link.dialing.configureBlocking(false);
+            link.dialing.connect(link.address);
+            link.dialing.register(selector, SelectionKey.OP_CONNECT, link);
+        } catch (IOException e) {
+            retry(link);
+        }
+    }
+
+    /**
+     * Usage: finishes a connection to a peer and greets it, or schedules
+     * another try if the peer is not there.
+     */
+    private void connected(Link link) {
+        try {
+            link.dialing.finishConnect();
+        } catch (IOException e) {
+            retry(link);
+            return;
+        }
+        link.connection = new Connection(link.dialing, server.options().queue, Connection.Policy.DISCONNECT);
+        link.dialing = null;
+        link.backoff = FIRST_RETRY;
+        link.connection.writeMessage(hello());
+        link.connection.register(selector); // takes over the key from the dial
+        up++;
+        System.out.println("Peer link up: " + link.connection.name);
+    }
+
+    /**
+     * Usage: gives up on a dial for now and schedules it again, later each time.
+     */
+    private void retry(Link link) {
+        try {
+            link.dialing.close();
+        } catch (IOException e) {
+            /* it never opened */}
+        link.dialing = null;
+        link.retryAt = System.currentTimeMillis() + link.backoff;
+        link.backoff = Math.min(link.backoff * 2, LAST_RETRY);
+    }
+
+    /**
+     * Usage: handles what a link sent: relays each message seen for the first
+     * time to the other links, and delivers the messages of each origin in seq
+     * order to the loops that own their rooms.
+     */
+    private void receive(Link from, List<Object> messages) {
+        for (Object m : messages) {
+            String msg;
+            if (m instanceof SharedFrame) {
+                msg = assemble(from, (SharedFrame) m);
+                ((SharedFrame) m).release();
+                if (msg == null) {
+                    continue; // more parts to come
+                }
+            } else {
+                msg = (String) m;
+            }
+            if (msg.startsWith(HELLO)) {
+                hello(msg);
+                continue;
+            }
+            if (!msg.startsWith(MESSAGE)) {
+                continue; // the welcome for a client
+            }
+            int header = msg.indexOf('\n');
+            int room = msg.indexOf('\n', header + 1);
+            String[] id = msg.substring(MESSAGE.length(), Math.max(MESSAGE.length(), header)).split(" ");
+            if (header < 0 || room < 0 || id.length != 2 || id[0].equals(origin)) {
+                continue; // malformed, or one of our own coming back
+            }
+            long n = Long.parseLong(id[1]);
+            Origin o = origins.computeIfAbsent(id[0], Origin::new);
+            if (o.next < 0) {
+                o.next = n; // the first message seen from it
+            }
+            if (n < o.next || o.held.containsKey(n)) {
+                duplicates++;
+                continue;
+            }
+            // pass it on before delivering it, so the other servers get it soon
+            received++;
+            try {
+                relay(SharedFrame.split(msg), from);
+            } catch (UTFDataFormatException e) {
+                /* assemble() takes none that long */}
+            o.held.put(n, new String[] { msg.substring(header + 1, room), msg.substring(room + 1) });
+            if (o.held.size() > HOLD) {
+                o.next = o.held.firstKey(); // the gap is never coming: skip it
+            }
+            deliver(o);
+        }
+    }
+
+    /** @return the hello for a new link, announcing the next seq sent on it */
+    private String hello() {
+        return HELLO + origin + " " + seq;
+    }
+
+    /**
+     * Usage: starts delivering a peer's own messages at the seq its hello
+     * announced, unless they are already being delivered. Starting at the
+     * first one seen instead would take a message that overtook the ones
+     * before it, by a shorter path, for the first, and drop those as
+     * duplicates.
+     */
+    private void hello(String msg) {
+        String[] id = msg.substring(HELLO.length()).split(" ");
+        if (id.length != 2 || id[0].equals(origin)) {
+            return; // from an older server, or ourselves
+        }
+        try {
+            long next = Long.parseLong(id[1]);
+            Origin o = origins.computeIfAbsent(id[0], Origin::new);
+            if (o.next < 0) {
+                o.next = next;
+            }
+        } catch (NumberFormatException e) {
+            /* not a seq: start at its first message */}
+    }
+
+    /**
+     * Usage: adds a part of a relayed message to what its link has received of
+     * it, dropping the message if it grows longer than any peer would send.
+     *
+     * @return the whole message once its LAST part is in, or null
+     */
+    private String assemble(Link from, SharedFrame part) {
+        if (part.type() == SharedFrame.FIRST) {
+            from.partial = new ByteArrayOutputStream();
+            from.stream = part.stream();
+        } else if (from.partial == null || part.stream() != from.stream) {
+            return null; // the rest of one already dropped
+        }
+        part.text(from.partial);
+        if (from.partial.size() > SharedFrame.MAX_MESSAGE) {
+            System.out.println("Dropped a relayed message longer than " + SharedFrame.MAX_MESSAGE + " bytes from "
+                    + from.connection.name);
+            from.partial = null;
+            return null;
+        }
+        if (part.type() != SharedFrame.LAST) {
+            return null;
+        }
+        String msg = from.partial.toString(StandardCharsets.UTF_8);
+        from.partial = null;
+        return msg;
+    }
+
+    /**
+     * Usage: queues the frames of one message for every link but one, back to
+     * back so their parts are not mixed with another message's, and releases
+     * them.
+     *
+     * @param except the link it came from, null if none
+     */
+    private void relay(SharedFrame[] frames, Link except) {
+        if (frames.length > 1) {
+            int stream = streams++;
+            for (SharedFrame frame : frames) {
+                frame.stream(stream);
+            }
+        }
+        for (Link link : links) {
+            if (link == except || link.connection == null) {
+                continue;
+            }
+            for (SharedFrame frame : frames) {
+                if (link.connection.send(frame)) {
+                    pending.add(link.connection);
+                }
+            }
+        }
+        for (SharedFrame frame : frames) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Usage: delivers the messages of an origin that are next in seq order,
+     * and waits GAP msec for the rest if some are held back.
+     */
+    private void deliver(Origin o) {
+        String[] next;
+        while ((next = o.held.remove(o.next)) != null) {
+            server.loopOf(next[0]).deliver(next[0], next[1]);
+            o.next++;
+        }
+        if (o.held.isEmpty()) {
+            gaps.cancel(o.timer);
+        } else if (!o.timer.pending()) {
+            gaps.schedule(o.timer, System.currentTimeMillis() + GAP);
+        }
+    }
+
+    /**
+     * Usage: gives up on the messages an origin has not sent for GAP msec,
+     * which were lost with a link, and delivers the ones held back after them.
+     */
+    private void skip(Origin o) {
+        if (!o.held.isEmpty()) {
+            System.out.println("Skipped " + (o.held.firstKey() - o.next) + " lost message(s) from " + o.name);
+            o.next = o.held.firstKey();
+            deliver(o);
+        }
+    }
+
+    /** @return a one-line summary of the links for reports */
+    String summary() {
+        return "peer links up: " + up + ", sent: " + seq + ", received: " + received + ", duplicates: "
+                + duplicates;
+    }
+}
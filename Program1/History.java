@@ -0,0 +1,103 @@
+
+/**
+ * History.java
+ * the recent messages of one room, numbered, in a fixed-size ring off the heap.
+ *
+ * Each message is kept as the exact frame a client that asked for sequence
+ * numbers receives: "\0" seq " " text, in a MESSAGE frame. The frames lie
+ * back to back in one direct ByteBuffer, and a small table remembers where
+ * each recent seq starts, so the messages since any seq still kept are one
+ * contiguous stretch of the ring (two, where it wraps round) and go to a
+ * reconnecting client as a single bulk frame. When the ring is full, the
+ * oldest messages are overwritten.
+ *
+ * A History belongs to the ChatLoop that owns its room, and is only used from
+ * that loop's thread.
+ *
+ * @author  Joshua Landron (CSS434 Spring 2019, University of Washington, Bothell)
+ * @since   10/19/26
+ * @version 10/19/26
+ */
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+class History {
+    final static int AVERAGE = 32; // #bytes per message the seq table is sized for
+
+    private final ByteBuffer ring;
+    private final long[] starts; // where each kept seq starts, indexed by seq % starts.length
+    private long first = 0; // the oldest seq kept
+    private long next = 0; // the seq of the next message
+    private long head = 0; // #bytes ever written; the next one goes to head % capacity
+
+    /**
+     * @param capacity #bytes of messages to keep
+     */
+    History(int capacity) {
+        ring = ByteBuffer.allocateDirect(capacity);
+        starts = new long[Math.max(16, capacity / AVERAGE)];
+    }
+
+    /**
+     * Usage: numbers a message and keeps it.
+     *
+     * @param msg a message sent to the room
+     * @return the frame for clients that asked for sequence numbers, holding
+     *         one reference for the caller to release()
+     * @throws UTFDataFormatException if msg is too long to send
+     */
+    SharedFrame append(String msg) throws UTFDataFormatException {
+        SharedFrame frame = SharedFrame.encode("\0" + next + " " + msg);
+        int length = frame.length();
+        if (length > ring.capacity()) {
+            // too big to keep: it can never be caught up on
+            first = ++next;
+            return frame;
+        }
+        // make room, forgetting the oldest messages
+        while (first < next && (head + length - starts[(int) (first % starts.length)] > ring.capacity()
+                || next - first >= starts.length)) {
+            first++;
+        }
+        int at = (int) (head % ring.capacity());
+        int part = Math.min(length, ring.capacity() - at);
+        ByteBuffer bytes = frame.view();
+        ring.put(at, bytes, 0, part);
+        if (part < length) {
+            ring.put(0, bytes, part, length - part); // wrap round
+        }
+        starts[(int) (next % starts.length)] = head;
+        head += length;
+        next++;
+        return frame;
+    }
+
+    /**
+     * Usage: copies the messages after a seq out of the ring in one piece.
+     *
+     * @param seq the last seq the client has
+     * @return the frames of the messages kept after seq, back to back, holding
+     *         one reference for the caller to release(); null if there are none
+     */
+    SharedFrame since(long seq) {
+        long from = Math.max(seq + 1, first);
+        if (from >= next) {
+            return null;
+        }
+        long start = starts[(int) (from % starts.length)];
+        int length = (int) (head - start);
+        int at = (int) (start % ring.capacity());
+        int part = Math.min(length, ring.capacity() - at);
+        return SharedFrame.copy(ring.slice(at, part), ring.slice(0, length - part));
+    }
+
+    /** @return the oldest seq kept */
+    long first() {
+        return first;
+    }
+
+    /** @return the last seq given out, -1 if none */
+    long latest() {
+        return next - 1;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * LatencyHistogram.java:<p>
+ * records latencies in microseconds with two significant digits and prints
+ * them as an HdrHistogram-style percentile distribution.
+ *
+ * Values below 256 usec get a bucket each; above that, every power of two is
+ * split into 128 linear sub-buckets, so a value is off by less than 1%, and
+ * every power of two a long can reach fits in 256 + 64 * 128 = 8,448
+ * counters. Recording is one index computation and one increment, with no
+ * allocation.
+ *
+ * @author  Joshua Landron
+ * @version 19Oct2026
+ */
+import java.io.PrintStream;
+
+class LatencyHistogram {
+	final static int SUB_BUCKETS = 128; // linear buckets per power of two
+	final static int LINEAR = 2 * SUB_BUCKETS; // values recorded exactly
+
+	private final long[] counts = new long[LINEAR + 64 * SUB_BUCKETS];
+	private long total = 0;
+	private long max = 0;
+	private double sum = 0;
+	private double sumOfSquares = 0;
+
+	/**
+	 * Records one latency.
+	 *
+	 * @param usec the latency in microseconds
+	 */
+	synchronized void record(long usec) {
+		usec = Math.max(0, usec);
+		counts[index(usec)]++;
+		total++;
+		max = Math.max(max, usec);
+		sum += usec;
+		sumOfSquares += (double) usec * usec;
+	}
+
+	/**
+	 * Adds every value recorded by other to this histogram.
+	 */
+	synchronized void add(LatencyHistogram other) {
+		synchronized (other) {
+			for (int i = 0; i < counts.length; i++)
+				counts[i] += other.counts[i];
+			total += other.total;
+			max = Math.max(max, other.max);
+			sum += other.sum;
+			sumOfSquares += other.sumOfSquares;
+		}
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the latency (usec) that percentile of the values are at or below
+	 */
+	synchronized long percentile(double percentile) {
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(highest(i), max);
+		}
+		return max;
+	}
+
+	synchronized long count() {
+		return total;
+	}
+
+	/**
+	 * Prints the distribution in the layout of HdrHistogram's
+	 * outputPercentileDistribution(), with values in msec.
+	 */
+	synchronized void print(PrintStream out) {
+		double[] ladder = { 0, 10, 20, 30, 40, 50, 55, 60, 65, 70, 75, 77.5, 80, 82.5, 85, 87.5, 90, 92.5, 95, 97.5,
+				99, 99.5, 99.9, 99.95, 99.99, 100 };
+		out.println("       Value     Percentile TotalCount 1/(1-Percentile)");
+		out.println();
+		for (double p : ladder) {
+			long value = percentile(p);
+			long below = 0;
+			for (int i = 0; i <= index(value) && i < counts.length; i++)
+				below += counts[i];
+			String inverse = (p < 100) ? String.format("%14.2f", 1 / (1 - p / 100)) : "";
+			out.printf("%12.3f %14.12f %10d %s%n", value / 1000.0, p / 100, below, inverse);
+		}
+		double mean = total == 0 ? 0 : sum / total;
+		double deviation = total == 0 ? 0 : Math.sqrt(Math.max(0, sumOfSquares / total - mean * mean));
+		out.printf("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", mean / 1000, deviation / 1000);
+		out.printf("#[Max     = %12.3f, Total count    = %12d]%n", max / 1000.0, total);
+		out.printf("#[Buckets = %12d, SubBuckets     = %12d]%n", counts.length / SUB_BUCKETS, SUB_BUCKETS);
+	}
+
+	/**
+	 * @return the counter a value is recorded in
+	 */
+	static int index(long value) {
+		if (value < LINEAR)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 7; // value >> shift is in [128, 256)
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * @return the largest value that is recorded in counter i
+	 */
+	static long highest(int i) {
+		if (i < LINEAR)
+			return i;
+		int shift = (i - LINEAR) / SUB_BUCKETS + 1;
+		long sub = (i - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
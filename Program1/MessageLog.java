@@ -0,0 +1,282 @@
+
+/**
+ * MessageLog.java
+ * an append-only log of every message sent to a room, in memory-mapped
+ * segment files, so the rooms' history survives a restart of the ChatServer.
+ *
+ * The log is a directory of segments named by their number, each a file of
+ * the same size mapped into memory. Records follow each other in a segment:
+ *
+ * <pre>
+ * record  := int(length) int(crc32c of payload) payload
+ * payload := short(#bytes of room) room text      (both in UTF-8)
+ * </pre>
+ *
+ * and a length of 0, or the end of the file, ends a segment. A record that
+ * does not fit in what is left of a segment starts the next one.
+ *
+ * Appending is a copy into the mapping under a short lock, so it costs about
+ * what keeping the message in memory does: once copied, the message is in the
+ * operating system's page cache and survives the server process crashing. A
+ * flusher thread forces everything appended since its last pass out to disk
+ * every commit interval, in one call per segment (group commit), so an
+ * operating system crash loses at most that interval.
+ *
+ * At startup the segments are read in order and each record is handed back;
+ * a record whose checksum does not match, as at the end of a log cut short by
+ * a crash, ends the replay, and appending resumes there.
+ *
+ * The log keeps its newest segments only, a given number of them counting the
+ * one being appended to: the flusher deletes older ones whole once a new one
+ * is started, and replay deletes any left over before reading, so a restart
+ * reads at most that many.
+ *
+ * @author  Joshua Landron (CSS434 Spring 2019, University of Washington, Bothell)
+ * @since   10/19/26
+ * @version 10/19/26
+ */
+import java.io.*; // for IOException
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*; // for Files, Path, StandardOpenOption
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+class MessageLog {
+    final static String SUFFIX = ".log";
+    final static int HEADER = 8; // #bytes before each payload
+
+    /**
+     * Receives the records of the log as it is replayed.
+     */
+    interface Replay {
+        void record(String room, String msg);
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int keep; // #segments kept
+    private final long commit; // msec between forces
+    private MappedByteBuffer segment; // the segment being appended to
+    private long number = 0; // its number
+    private volatile long oldest = 0; // the number of the oldest segment not deleted
+    private int flushed = 0; // where its last force ended
+    // full segments not forced since they filled up
+    private final ConcurrentLinkedQueue<MappedByteBuffer> rolled = new ConcurrentLinkedQueue<>();
+    private volatile long appended = 0; // #records appended since startup
+    private volatile long forces = 0; // #forces done
+    private volatile long forceNanos = 0; // time spent in them
+
+    /**
+     * Opens the log in a directory, creating it if needed.
+     *
+     * @param directory   where the segments are
+     * @param segmentSize #bytes in each segment
+     * @param keep        #segments kept, at least 1
+     * @param commit      msec between forces to disk
+     */
+    MessageLog(Path directory, int segmentSize, int keep, long commit) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.keep = keep;
+        this.commit = commit;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Usage: hands every record in the log, oldest first, to replay, then gets
+     * ready to append after the last one.
+     *
+     * @return a summary of what was replayed
+     */
+    String replay(Replay replay) throws IOException {
+        long start = System.nanoTime();
+        ArrayList<Path> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().forEach(segments::add);
+        }
+        while (segments.size() > keep) {
+            Files.delete(segments.remove(0)); // older than we keep
+        }
+        if (!segments.isEmpty()) {
+            oldest = number(segments.get(0));
+        }
+        long records = 0, bytes = 0;
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segments.get(i);
+            MappedByteBuffer m = map(path, Math.max(segmentSize, Files.size(path)));
+            boolean torn = false;
+            while (m.remaining() >= HEADER) {
+                int length = m.getInt(m.position());
+                if (length <= 0 || length > m.remaining() - HEADER) {
+                    break; // the end of this segment
+                }
+                int checksum = m.getInt(m.position() + 4);
+                byte[] payload = new byte[length];
+                m.get(m.position() + HEADER, payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    torn = true; // cut short: nothing valid follows
+                    break;
+                }
+                int roomLength = ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+                replay.record(new String(payload, 2, roomLength, StandardCharsets.UTF_8),
+                        new String(payload, 2 + roomLength, length - 2 - roomLength, StandardCharsets.UTF_8));
+                m.position(m.position() + HEADER + length);
+                records++;
+                bytes += HEADER + length;
+            }
+            number = number(path);
+            if (torn || i == segments.size() - 1) {
+                // append after the last good record, and drop anything later
+                if (m.remaining() >= 4) {
+                    m.putInt(m.position(), 0);
+                }
+                for (Path later : segments.subList(i + 1, segments.size())) {
+                    Files.delete(later);
+                }
+                segment = m;
+                flushed = m.position();
+                break;
+            }
+        }
+        if (segment == null) {
+            segment = map(directory.resolve(name(number)), segmentSize);
+        }
+        return "Replayed " + records + " message(s), " + bytes + " bytes from " + segments.size()
+                + " segment(s) in " + (System.nanoTime() - start) / 1000000 + " msec";
+    }
+
+    /**
+     * Usage: starts the thread that forces what is appended out to disk.
+     */
+    void start() {
+        Thread flusher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(commit);
+                    flush();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "chat-log-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Usage: appends a message; called from any loop.
+     *
+     * @param room the room it was sent to
+     * @param msg  the message
+     */
+    void append(String room, String msg) {
+        byte[] name = room.getBytes(StandardCharsets.UTF_8);
+        byte[] text = msg.getBytes(StandardCharsets.UTF_8);
+        int length = 2 + name.length + text.length;
+        if (HEADER + length + 4 > segmentSize) {
+            System.err.println("message too long for a log segment, not logged");
+            return;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(new byte[] { (byte) (name.length >> 8), (byte) name.length });
+        crc.update(name);
+        crc.update(text);
+        synchronized (this) {
+            if (segment.remaining() < HEADER + length + 4) {
+                roll();
+            }
+            // the record, then the end mark after it, then the length that
+            // makes it count
+            int at = segment.position();
+            segment.position(at + 4);
+            segment.putInt((int) crc.getValue()).putShort((short) name.length).put(name).put(text);
+            segment.putInt(segment.position(), 0);
+            segment.putInt(at, length);
+            appended++;
+        }
+    }
+
+    /**
+     * Usage: leaves a full segment to the flusher and starts the next one.
+     */
+    private void roll() {
+        try {
+            if (segment.remaining() >= 4) {
+                segment.putInt(segment.position(), 0);
+            }
+            rolled.add(segment);
+            number++;
+            segment = map(directory.resolve(name(number)), segmentSize);
+            flushed = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Usage: forces out everything appended since the last time, one call per
+     * segment, then deletes the segments older than the ones kept.
+     */
+    void flush() {
+        long start = System.nanoTime();
+        MappedByteBuffer full;
+        while ((full = rolled.poll()) != null) {
+            full.force();
+        }
+        MappedByteBuffer m;
+        int from, to;
+        long current;
+        synchronized (this) {
+            m = segment;
+            from = flushed;
+            to = segment.position();
+            flushed = to;
+            current = number;
+        }
+        for (; oldest <= current - keep; oldest++) {
+            try {
+                Files.deleteIfExists(directory.resolve(name(oldest)));
+            } catch (IOException e) {
+                System.err.println("could not delete log segment " + oldest + ": " + e.getMessage());
+            }
+        }
+        if (to > from) {
+            m.force(from, to - from);
+            forces++;
+            forceNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Usage: maps a segment, creating it at full size if it is new.
+     */
+    private static MappedByteBuffer map(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static long number(Path segment) {
+        return Long.parseLong(segment.getFileName().toString().replace(SUFFIX, ""));
+    }
+
+    private static String name(long number) {
+        return String.format("%016d%s", number, SUFFIX);
+    }
+
+    /** @return a one-line summary of the log for reports */
+    String summary() {
+        long n = forces;
+        return "log: " + appended + " message(s) appended, segment " + number + " (oldest " + oldest + "), " + n
+                + " force(s)"
+                + (n > 0 ? String.format(" averaging %.3f msec", forceNanos / 1e6 / n) : "");
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Overlay.java:<p>
+ * decides which members a Chat member connects to and whether it passes on
+ * the messages it receives.
+ *
+ * <ul>
+ * <li>mesh: every member connects to every other one and sends each message
+ * to all of them itself. N - 1 connections and N - 1 writes per message.
+ * <li>tree[:k]: members form a k-ary tree rooted at rank 0 (k = 2 by
+ * default). Each member connects only to its parent and children, and passes
+ * every message it receives on to its other tree neighbors. At most k + 1
+ * connections and k + 1 writes per message, and a message reaches everybody
+ * in O(log_k N) hops.
+ * </ul>
+ *
+ * A tree has exactly one path between two members, so nobody sees a message
+ * twice. Messages taking different paths may still arrive out of causal order,
+ * which CausalOrder takes care of as it does with the mesh.
+ *
+ * @author  Joshua Landron
+ * @version 19Oct2026
+ */
+import java.util.ArrayList;
+
+interface Overlay {
+	/** @return the ranks this member keeps a connection to */
+	int[] neighbors();
+
+	/**
+	 * @return true if a message received from a neighbor is passed on to the
+	 *         other neighbors
+	 */
+	boolean relays();
+
+	/**
+	 * Builds an overlay from its command-line name.
+	 *
+	 * @param spec    "mesh", "tree" or "tree:k"
+	 * @param members #chat members
+	 * @param rank    this local node's rank
+	 */
+	static Overlay parse(String spec, int members, int rank) {
+		if (spec.equals("mesh"))
+			return new Mesh(members, rank);
+		if (spec.equals("tree"))
+			return new Tree(members, rank, 2);
+		if (spec.startsWith("tree:"))
+			return new Tree(members, rank, Integer.parseInt(spec.substring(5)));
+		throw new IllegalArgumentException("unknown overlay " + spec);
+	}
+
+	/**
+	 * Everybody connected to everybody.
+	 */
+	class Mesh implements Overlay {
+		private final int[] neighbors;
+
+		Mesh(int members, int rank) {
+			neighbors = new int[members - 1];
+			for (int i = 0, n = 0; i < members; i++)
+				if (i != rank)
+					neighbors[n++] = i;
+		}
+
+		public int[] neighbors() {
+			return neighbors;
+		}
+
+		public boolean relays() {
+			return false;
+		}
+	}
+
+	/**
+	 * A k-ary spanning tree rooted at rank 0.
+	 */
+	class Tree implements Overlay {
+		private final int[] neighbors;
+
+		Tree(int members, int rank, int k) {
+			if (k < 1)
+				throw new IllegalArgumentException("tree fan-out must be at least 1");
+			ArrayList<Integer> list = new ArrayList<>();
+			if (rank > 0)
+				list.add((rank - 1) / k); // parent
+			for (int child = k * rank + 1; child <= k * rank + k && child < members; child++)
+				list.add(child);
+			neighbors = list.stream().mapToInt(Integer::intValue).toArray();
+		}
+
+		public int[] neighbors() {
+			return neighbors;
+		}
+
+		public boolean relays() {
+			return true;
+		}
+	}
+}
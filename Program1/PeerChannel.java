@@ -0,0 +1,194 @@
+/**
+ * PeerChannel.java:<p>
+ * a non-blocking connection from one Chat member to another.
+ *
+ * Messages travel as frames: a varint length followed by that many bytes of
+ * payload (see ChatWire). Incoming bytes are accumulated in a read buffer and
+ * cut into whole frames; outgoing frames wait in a queue until the socket
+ * accepts them, so a slow peer never blocks the event loop.
+ *
+ * Outgoing frames are batched: send() only queues a frame, and the event loop
+ * copies everything queued for a peer into one direct buffer and writes it
+ * with a single write once the batch is full, once its oldest frame has
+ * lingered long enough, or at the end of the loop iteration when there is no
+ * linger. (A gathering write of many small heap buffers would make the JDK
+ * copy each of them into a temporary direct buffer on every call.) Nagle's
+ * algorithm is turned off (TCP_NODELAY) since the batching already happens
+ * here, where it knows when a burst is over, rather than in the kernel
+ * waiting for an ACK.
+ *
+ * @author  Joshua Landron
+ * @version 19Oct2026
+ */
+import java.io.*; // for IOException
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*; // for SocketChannel, Selector, SelectionKey
+import java.util.ArrayDeque;
+
+class PeerChannel {
+	/**
+	 * Receives each whole frame read from a peer.
+	 */
+	interface FrameHandler {
+		void frame(PeerChannel peer, ByteBuffer payload) throws IOException;
+	}
+
+	final int rank; // the remote member's rank
+	final SocketChannel channel;
+	final int[] lastSent; // the last vector clock sent to this peer
+	final int[] lastReceived; // the last vector clock received from this peer
+	private SelectionKey key;
+	private ByteBuffer in = ByteBuffer.allocate(64 * 1024); // bytes read, not yet framed
+	private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>(); // frames not yet copied to staging
+	private ByteBuffer staging = ByteBuffer.allocateDirect(64 * 1024); // the batch being written
+	private long queued = 0; // #bytes in out and staging
+	private long oldest = 0; // System.nanoTime() when the oldest frame in out was queued
+	private int batch = 64 * 1024; // write as soon as this many bytes are queued
+	private long linger = 0; // nsec a frame may wait for more to join it
+	private boolean full = false; // the socket took only part of the last write
+
+	/**
+	 * @param rank    the remote member's rank
+	 * @param channel a connected channel to that member
+	 * @param members #chat members, the size of a vector clock
+	 */
+	PeerChannel(int rank, SocketChannel channel, int members) {
+		this.rank = rank;
+		this.channel = channel;
+		this.lastSent = new int[members];
+		this.lastReceived = new int[members];
+	}
+
+	/**
+	 * Sets how outgoing frames are coalesced.
+	 *
+	 * @param batch  #bytes that are written as soon as they are queued
+	 * @param linger msec a frame may wait for others to be written with it
+	 */
+	void batching(int batch, long linger) {
+		this.batch = batch;
+		this.linger = linger * 1000000;
+		staging = ByteBuffer.allocateDirect(Math.max(batch, 4096));
+	}
+
+	/**
+	 * Switches the channel to non-blocking mode, turns off Nagle's algorithm
+	 * and registers it for reads.
+	 */
+	void register(Selector selector) throws IOException {
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Reads whatever the socket has and passes each whole frame to handler.
+	 *
+	 * @return false if the peer has closed the connection
+	 */
+	boolean read(FrameHandler handler) throws IOException {
+		int n = channel.read(in);
+		if (n < 0) {
+			return false;
+		}
+		in.flip();
+		while (in.hasRemaining()) {
+			int start = in.position();
+			int length = ChatWire.tryReadLength(in);
+			if (length < 0 || in.remaining() < length) {
+				in.position(start); // wait for the rest of the frame
+				int header = length < 0 ? 0 : ChatWire.varintSize(length);
+				if (header + length > in.capacity()) {
+					// the frame cannot fit: make room for it
+					ByteBuffer bigger = ByteBuffer.allocate(header + length);
+					bigger.put(in);
+					in = bigger;
+					in.flip();
+				}
+				break;
+			}
+			ByteBuffer payload = in.slice();
+			payload.limit(length);
+			in.position(in.position() + length);
+			handler.frame(this, payload);
+		}
+		in.compact();
+		return true;
+	}
+
+	/**
+	 * Queues a whole frame (length included), and writes the batch if it is
+	 * full.
+	 */
+	void send(ByteBuffer frame) throws IOException {
+		if (!pending())
+			oldest = System.nanoTime();
+		out.add(frame);
+		queued += frame.remaining();
+		if (queued >= batch && !full) // a full socket gets flushed on OP_WRITE
+			flush();
+	}
+
+	/**
+	 * @param now System.nanoTime()
+	 * @return nsec until the queued frames must be written, 0 or less if they
+	 *         are due now, Long.MAX_VALUE if nothing is queued or the socket is
+	 *         full (OP_WRITE will say when it is not)
+	 */
+	long due(long now) {
+		if (!pending() || full)
+			return Long.MAX_VALUE;
+		return oldest + linger - now;
+	}
+
+	/**
+	 * Writes queued frames, a staging buffer at a time, until the queue is empty
+	 * or the socket is full, and asks the selector for OP_WRITE only while
+	 * something is left over.
+	 */
+	void flush() throws IOException {
+		while (pending()) {
+			// top the staging buffer up with as many queued bytes as fit
+			while (!out.isEmpty() && staging.hasRemaining()) {
+				ByteBuffer head = out.peek();
+				if (head.remaining() <= staging.remaining()) {
+					staging.put(head);
+					out.poll();
+				} else {
+					ByteBuffer part = head.duplicate();
+					part.limit(part.position() + staging.remaining());
+					staging.put(part);
+					head.position(part.position());
+				}
+			}
+			staging.flip();
+			int written = channel.write(staging);
+			staging.compact();
+			queued -= written;
+			if (written == 0)
+				break; // the socket buffer is full
+		}
+		oldest = System.nanoTime();
+		full = pending();
+		if (key != null && key.isValid()) {
+			key.interestOps(full ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+	}
+
+	/** @return true if frames are still waiting to be written */
+	boolean pending() {
+		return !out.isEmpty() || staging.position() > 0;
+	}
+
+	void close() {
+		try {
+			if (key != null) {
+				key.cancel();
+			}
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
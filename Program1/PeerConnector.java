@@ -0,0 +1,263 @@
+/**
+ * PeerConnector.java:<p>
+ * brings up the connections between a Chat member and its overlay neighbors,
+ * all at once.
+ *
+ * Every connection to a lower-ranked neighbor is started at the same time
+ * with a non-blocking connect, and connections from higher-ranked neighbors
+ * are accepted as they come, all from one Selector. The connecting side opens
+ * with a handshake that carries its rank explicitly:
+ *
+ * <pre>
+ * handshake := int(MAGIC) int(rank)
+ * </pre>
+ *
+ * so the accepting side never has to look up who called it by reverse DNS. A
+ * neighbor that is not listening yet refuses the connection, and is simply
+ * tried again after a short backoff. The whole mesh therefore comes up in
+ * roughly the time of the slowest single connection rather than the sum of
+ * all of them.
+ *
+ * @author  Joshua Landron
+ * @version 19Oct2026
+ */
+import java.io.*; // for IOException
+import java.net.*; // for InetSocketAddress
+import java.nio.ByteBuffer;
+import java.nio.channels.*; // for Selector, SelectionKey, ServerSocketChannel, SocketChannel
+import java.util.ArrayList;
+
+class PeerConnector {
+	final static int MAGIC = 0x43484154; // "CHAT"
+	final static int HANDSHAKE = 8; // #bytes in a handshake
+	final static long FIRST_RETRY = 20; // msec before retrying a refused connection
+	final static long LAST_RETRY = 1000; // msec between retries at most
+
+	/**
+	 * One connection being set up.
+	 */
+	private static class Attempt {
+		int rank; // the neighbor's rank, -1 until its handshake arrives
+		SocketChannel channel;
+		ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE);
+		long backoff = FIRST_RETRY;
+		long retryAt = 0; // when to connect again, 0 if not waiting
+
+		Attempt(int rank) {
+			this.rank = rank;
+		}
+	}
+
+	private final int rank; // my own rank
+	private final InetSocketAddress[] addresses; // where each member listens
+	private final PeerChannel[] peers;
+	private final long[] upAt; // msec after start each neighbor came up
+	private final boolean[] expected; // true for each neighbor that calls me
+	private final Selector selector;
+	private ServerSocketChannel server; // where the higher-ranked neighbors call
+	private final ArrayList<Attempt> waiting = new ArrayList<>(); // refused, to retry
+	private final long start = System.nanoTime();
+	private int missing; // #neighbors not connected yet
+
+	/**
+	 * @param rank      my own rank
+	 * @param addresses where each member accepts connections
+	 */
+	private PeerConnector(int rank, InetSocketAddress[] addresses) throws IOException {
+		this.rank = rank;
+		this.addresses = addresses;
+		this.peers = new PeerChannel[addresses.length];
+		this.upAt = new long[addresses.length];
+		this.expected = new boolean[addresses.length];
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Connects to every neighbor and prints how long it took.
+	 *
+	 * @param rank      my own rank
+	 * @param addresses where each member accepts connections
+	 * @param neighbors the ranks to connect to
+	 * @param timeout   msec to wait for the slowest neighbor
+	 * @return a connection to each neighbor, indexed by rank (null for members
+	 *         that are not neighbors)
+	 */
+	static PeerChannel[] connect(int rank, InetSocketAddress[] addresses, int[] neighbors, long timeout)
+			throws IOException {
+		PeerConnector connector = new PeerConnector(rank, addresses);
+		boolean connected = false;
+		try {
+			PeerChannel[] peers = connector.run(neighbors, timeout);
+			connected = true;
+			return peers;
+		} finally {
+			connector.close(connected);
+		}
+	}
+
+	/**
+	 * Closes the listening socket and every connection still being set up,
+	 * and, if the mesh did not come up, the connections that did: nobody else
+	 * will ever see them.
+	 */
+	private void close(boolean connected) {
+		ArrayList<Closeable> open = new ArrayList<>();
+		if (server != null)
+			open.add(server);
+		for (SelectionKey key : selector.keys())
+			if (key.isValid()) // a cancelled key's channel is up, or closed
+				open.add(key.channel());
+		open.add(selector); // deregisters everything
+		for (Closeable c : open) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				/* closing anyway */}
+		}
+		if (!connected)
+			for (PeerChannel peer : peers)
+				if (peer != null)
+					peer.close();
+	}
+
+	private PeerChannel[] run(int[] neighbors, long timeout) throws IOException {
+		server = ServerSocketChannel.open();
+		server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		server.bind(new InetSocketAddress(addresses[rank].getPort()));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		missing = neighbors.length;
+		for (int i : neighbors)
+			if (i < rank)
+				// connect to others with a lower rank, all at the same time
+				dial(new Attempt(i));
+			else
+				expected[i] = true;
+
+		long deadline = start / 1000000 + timeout;
+		while (missing > 0) {
+			long now = System.nanoTime() / 1000000;
+			if (now >= deadline)
+				throw new IOException(missing + " neighbor(s) did not connect within " + timeout + " msec");
+
+			// wake up in time for the earliest retry
+			long wait = deadline - now;
+			for (Attempt a : waiting)
+				wait = Math.min(wait, Math.max(1, a.retryAt - now));
+			selector.select(wait);
+
+			for (SelectionKey key : selector.selectedKeys()) {
+				if (!key.isValid())
+					continue;
+				if (key.isAcceptable()) {
+					// accept a connection from others with a higher rank
+					SocketChannel channel = server.accept();
+					if (channel != null) {
+						channel.configureBlocking(false);
+						Attempt a = new Attempt(-1);
+						a.channel = channel;
+						channel.register(selector, SelectionKey.OP_READ, a);
+					}
+				} else if (key.isConnectable()) {
+					Attempt a = (Attempt) key.attachment();
+					try {
+						a.channel.finishConnect();
+						a.handshake.putInt(MAGIC).putInt(rank).flip();
+						key.interestOps(SelectionKey.OP_WRITE);
+					} catch (IOException e) {
+						key.cancel();
+						retry(a);
+					}
+				} else if (key.isWritable()) {
+					Attempt a = (Attempt) key.attachment();
+					a.channel.write(a.handshake);
+					if (!a.handshake.hasRemaining()) {
+						key.cancel();
+						up(a.rank, a.channel);
+					}
+				} else if (key.isReadable()) {
+					Attempt a = (Attempt) key.attachment();
+					if (a.channel.read(a.handshake) < 0) {
+						key.cancel();
+						a.channel.close();
+					} else if (!a.handshake.hasRemaining()) {
+						key.cancel();
+						a.handshake.flip();
+						int magic = a.handshake.getInt();
+						int from = a.handshake.getInt();
+						if (magic != MAGIC || from < 0 || from >= peers.length || !expected[from]
+								|| peers[from] != null) {
+							System.err.println("rejected a connection from " + a.channel.getRemoteAddress());
+							a.channel.close();
+						} else {
+							up(from, a.channel);
+						}
+					}
+				}
+			}
+			selector.selectedKeys().clear();
+
+			// retry the refused connections whose backoff is over
+			now = System.nanoTime() / 1000000;
+			for (int i = waiting.size() - 1; i >= 0; i--)
+				if (waiting.get(i).retryAt <= now)
+					dial(waiting.remove(i));
+		}
+		server.close();
+		report(neighbors);
+		return peers;
+	}
+
+	/**
+	 * Starts a non-blocking connection to a lower-ranked neighbor.
+	 */
+	private void dial(Attempt a) throws IOException {
+		a.channel = SocketChannel.open();
+		a.channel.configureBlocking(false);
+		a.handshake.clear();
+		try {
+			if (a.channel.connect(addresses[a.rank])) {
+				a.handshake.putInt(MAGIC).putInt(rank).flip();
+				a.channel.register(selector, SelectionKey.OP_WRITE, a);
+			} else {
+				a.channel.register(selector, SelectionKey.OP_CONNECT, a);
+			}
+		} catch (IOException e) {
+			retry(a);
+		}
+	}
+
+	/**
+	 * Gives up on a refused connection for now and schedules it again, since
+	 * the neighbor is probably not listening yet.
+	 */
+	private void retry(Attempt a) throws IOException {
+		a.channel.close();
+		a.retryAt = System.nanoTime() / 1000000 + a.backoff;
+		a.backoff = Math.min(a.backoff * 2, LAST_RETRY);
+		waiting.add(a);
+	}
+
+	/**
+	 * Records a neighbor whose connection is ready.
+	 */
+	private void up(int from, SocketChannel channel) throws IOException {
+		peers[from] = new PeerChannel(from, channel, addresses.length);
+		upAt[from] = (System.nanoTime() - start) / 1000000;
+		missing--;
+	}
+
+	/**
+	 * Prints how long the whole mesh and its slowest connection took.
+	 */
+	private void report(int[] neighbors) {
+		long total = (System.nanoTime() - start) / 1000000;
+		int slowest = -1;
+		for (int i : neighbors)
+			if (slowest < 0 || upAt[i] > upAt[slowest])
+				slowest = i;
+		System.out.println(neighbors.length + " neighbor(s) connected in " + total + " msec"
+				+ (slowest >= 0 ? " (slowest: rank " + slowest + " after " + upAt[slowest] + " msec)" : ""));
+	}
+}
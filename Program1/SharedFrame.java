@@ -0,0 +1,282 @@
+
+/**
+ * SharedFrame.java
+ * one message encoded once and shared by every connection it is sent to.
+ *
+ * Every message on the wire is a binary frame with a type and a length:
+ *
+ * <pre>
+ * frame   := byte(type) int(#bytes of payload) payload
+ * MESSAGE := the text of a whole message, in UTF-8
+ * FIRST, PART, LAST := int(stream) bytes
+ * </pre>
+ *
+ * A message longer than CHUNK bytes goes in parts: a FIRST, any number of
+ * PARTs and a LAST, each with up to CHUNK bytes of its UTF-8 text. The server
+ * numbers the stream of parts from one client and passes each part on as it
+ * arrives, so it never holds a whole large message; receivers put the parts
+ * of each stream back together, while other messages keep arriving between
+ * them.
+ *
+ * The frame is kept in a direct ByteBuffer taken from a pool. Each
+ * connection queues its own view() of it, so they write the same bytes at
+ * their own pace without copying them, and a direct buffer goes to the socket
+ * without the JDK copying it into a temporary one first. The frame counts the
+ * connections still holding it; the last one to release() it gives the buffer
+ * back to the pool, so a busy server reuses a few buffers instead of
+ * allocating one per message per client. A frame may also hold several
+ * messages back to back (see copy()); buffers too big for the pool are
+ * allocated for the frame alone.
+ *
+ * @author  Joshua Landron (CSS434 Spring 2019, University of Washington, Bothell)
+ * @since   10/19/26
+ * @version 10/19/26
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SharedFrame {
+    final static int SMALLEST = 8; // log2 of the smallest buffer in the pool, 256 bytes
+    final static int LARGEST = 17; // log2 of the largest, enough for any frame from a client
+    final static byte MESSAGE = 1; // a whole message
+    final static byte FIRST = 2; // the first part of a large message
+    final static byte PART = 3; // a part in the middle
+    final static byte LAST = 4; // the last part
+    final static int HEADER = 5; // #bytes before each payload
+    final static int CHUNK = 64 * 1024; // #bytes of text in a frame from a client at most
+    final static int MAX_FRAME = CHUNK + 4; // #bytes of payload in a frame from a client at most
+    final static int MAX_MESSAGE = 1024 * 1024; // #bytes of text the server puts in one frame at most
+    final static int KEEP = 1024; // #free buffers kept per size
+
+    // free buffers of 2^SMALLEST through to 2^LARGEST bytes
+    private final static ArrayDeque<ByteBuffer>[] pool = newPool();
+    private final static AtomicInteger allocated = new AtomicInteger(); // #buffers ever allocated
+    private final static AtomicInteger inUse = new AtomicInteger(); // #frames not released yet
+
+    private final ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private SharedFrame(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static ArrayDeque<ByteBuffer>[] newPool() {
+        ArrayDeque<ByteBuffer>[] pool = new ArrayDeque[LARGEST - SMALLEST + 1];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = new ArrayDeque<>();
+        }
+        return pool;
+    }
+
+    /**
+     * Usage: encodes a message into a MESSAGE frame, once.
+     *
+     * @param msg String to be sent
+     * @return a frame holding one reference, for the caller to release()
+     * @throws UTFDataFormatException if msg takes more than MAX_MESSAGE bytes
+     */
+    static SharedFrame encode(String msg) throws UTFDataFormatException {
+        int length = 0;
+        for (int i = 0; i < msg.length(); i++) {
+            char c = msg.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < msg.length()
+                    && Character.isLowSurrogate(msg.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += Character.isSurrogate(c) ? 1 : 3; // a lone surrogate becomes '?'
+            }
+        }
+        if (length > MAX_MESSAGE) {
+            throw new UTFDataFormatException("message too long for one frame: " + length + " bytes");
+        }
+        SharedFrame frame = acquire(HEADER + length);
+        ByteBuffer b = frame.buffer;
+        b.put(MESSAGE).putInt(length);
+        for (int i = 0; i < msg.length(); i++) {
+            char c = msg.charAt(i);
+            if (c < 0x80) {
+                b.put((byte) c);
+            } else if (c < 0x800) {
+                b.put((byte) (0xC0 | (c >> 6))).put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < msg.length()
+                    && Character.isLowSurrogate(msg.charAt(i + 1))) {
+                int p = Character.toCodePoint(c, msg.charAt(++i));
+                b.put((byte) (0xF0 | (p >> 18))).put((byte) (0x80 | ((p >> 12) & 0x3F)))
+                        .put((byte) (0x80 | ((p >> 6) & 0x3F))).put((byte) (0x80 | (p & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                b.put((byte) '?');
+            } else {
+                b.put((byte) (0xE0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3F)))
+                        .put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        b.flip();
+        return frame;
+    }
+
+    /**
+     * Usage: encodes a message for a peer server, which takes no frame over
+     * MAX_FRAME bytes either: one MESSAGE frame if it fits, or else a FIRST,
+     * PARTs and a LAST of up to CHUNK bytes each, to be sent back to back after
+     * stream() has numbered them.
+     *
+     * @param msg String to be sent
+     * @return the frames, each holding one reference, for the caller to release()
+     * @throws UTFDataFormatException if msg takes more than MAX_MESSAGE bytes
+     */
+    static SharedFrame[] split(String msg) throws UTFDataFormatException {
+        SharedFrame whole = encode(msg);
+        int length = whole.length() - HEADER;
+        if (length <= MAX_FRAME) {
+            return new SharedFrame[] { whole };
+        }
+        SharedFrame[] parts = new SharedFrame[(length + CHUNK - 1) / CHUNK];
+        for (int i = 0, at = HEADER; i < parts.length; i++, at += CHUNK) {
+            int n = Math.min(CHUNK, HEADER + length - at);
+            byte type = (i == 0) ? FIRST : (i == parts.length - 1) ? LAST : PART;
+            parts[i] = acquire(HEADER + 4 + n);
+            parts[i].buffer.put(type).putInt(4 + n).putInt(0).put(whole.buffer.slice(at, n)).flip();
+        }
+        whole.release();
+        return parts;
+    }
+
+    /**
+     * Usage: puts several pieces of already encoded frames together into one,
+     * to be written out as a whole.
+     *
+     * @param parts the bytes to copy, each from its position to its limit
+     * @return a frame holding one reference, for the caller to release()
+     */
+    static SharedFrame copy(ByteBuffer... parts) {
+        int size = 0;
+        for (ByteBuffer part : parts) {
+            size += part.remaining();
+        }
+        SharedFrame frame = acquire(size);
+        for (ByteBuffer part : parts) {
+            frame.buffer.put(part.duplicate());
+        }
+        frame.buffer.flip();
+        return frame;
+    }
+
+    /**
+     * Usage: takes a buffer of at least size bytes from the pool.
+     */
+    private static SharedFrame acquire(int size) {
+        int shift = Math.max(SMALLEST, 32 - Integer.numberOfLeadingZeros(size - 1));
+        if (shift > LARGEST) {
+            inUse.incrementAndGet();
+            return new SharedFrame(ByteBuffer.allocateDirect(size)); // too big to pool
+        }
+        ByteBuffer buffer = null;
+        ArrayDeque<ByteBuffer> free = pool[shift - SMALLEST];
+        synchronized (free) {
+            buffer = free.poll();
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << shift);
+            allocated.incrementAndGet();
+        }
+        buffer.clear();
+        inUse.incrementAndGet();
+        return new SharedFrame(buffer);
+    }
+
+    /**
+     * Usage: adds a reference for one more connection to hold.
+     *
+     * @return this frame
+     */
+    SharedFrame retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Usage: drops a reference; the last one gives the buffer back to the pool.
+     */
+    void release() {
+        int left = references.decrementAndGet();
+        if (left > 0) {
+            return;
+        }
+        if (left < 0) {
+            throw new IllegalStateException("frame released more often than retained");
+        }
+        inUse.decrementAndGet();
+        if (buffer.capacity() > 1 << LARGEST) {
+            return; // not from the pool
+        }
+        ArrayDeque<ByteBuffer> free = pool[Integer.numberOfTrailingZeros(buffer.capacity()) - SMALLEST];
+        synchronized (free) {
+            if (free.size() < KEEP) {
+                free.push(buffer); // reuse the most recent, the likeliest to be in cache
+            }
+        }
+    }
+
+    /**
+     * @return a view of the frame with its own position, for one connection to
+     *         write out
+     */
+    ByteBuffer view() {
+        return buffer.duplicate();
+    }
+
+    /** @return the type of the (first) frame */
+    byte type() {
+        return buffer.get(0);
+    }
+
+    /** @return true if the frame is a part of a large message */
+    boolean part() {
+        return type() != MESSAGE;
+    }
+
+    /**
+     * Usage: sets the stream a part belongs to, before it is sent.
+     */
+    void stream(int stream) {
+        buffer.putInt(HEADER, stream);
+    }
+
+    /** @return the stream a part belongs to */
+    int stream() {
+        return buffer.getInt(HEADER);
+    }
+
+    /**
+     * Usage: appends the text a part carries to out.
+     */
+    void text(ByteArrayOutputStream out) {
+        byte[] text = new byte[buffer.limit() - HEADER - 4];
+        buffer.get(HEADER + 4, text);
+        out.write(text, 0, text.length);
+    }
+
+    /** @return #bytes in the frame */
+    int length() {
+        return buffer.limit();
+    }
+
+    /** @return #frames encoded and not released yet */
+    static int inUse() {
+        return inUse.get();
+    }
+
+    /** @return #direct buffers the pool has allocated */
+    static int allocated() {
+        return allocated.get();
+    }
+}
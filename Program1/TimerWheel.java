@@ -0,0 +1,141 @@
+
+/**
+ * TimerWheel.java
+ * a hashed timing wheel: timers that cost O(1) to start, restart and cancel,
+ * however many there are.
+ *
+ * Time is cut into ticks, and the wheel is a ring of slots, one per tick; a
+ * timer hangs in a doubly linked list at the slot of the tick it is due in.
+ * Each tick, the wheel visits one slot and fires the timers due there. A
+ * timer due more than a whole turn ahead also counts the turns still to go,
+ * and is passed over until they run out, so a wheel whose turn is longer than
+ * its timers' delays visits each timer once, when it fires. The timers are
+ * nodes inside the objects they time rather than entries of a separate
+ * structure, so restarting one allocates nothing.
+ *
+ * A TimerWheel belongs to one ChatLoop, or to the Federation, and is only
+ * used from its thread.
+ *
+ * @author  Joshua Landron (CSS434 Spring 2019, University of Washington, Bothell)
+ * @since   10/19/26
+ * @version 10/19/26
+ */
+import java.util.function.Consumer;
+
+class TimerWheel<T> {
+    /**
+     * One timer, in at most one slot at a time.
+     */
+    static class Timer<T> {
+        final T owner; // what the timer is for
+        private Timer<T> previous, next; // in its slot, null at either end
+        private int slot = -1; // the slot it hangs in, -1 if not started
+        private long turns; // #whole turns of the wheel before it is due
+
+        Timer(T owner) {
+            this.owner = owner;
+        }
+
+        /** @return true if the timer is started and has not fired */
+        boolean pending() {
+            return slot >= 0;
+        }
+    }
+
+    private final long tick; // msec per tick
+    private final Timer<T>[] slots; // the first timer of each slot
+    private final int mask; // slots.length - 1
+    private long now; // the last tick visited
+    private int size = 0; // #timers started and not fired
+
+    /**
+     * @param tick  msec per tick
+     * @param slots #slots, rounded up to a power of two
+     * @param start the time in msec to count ticks from
+     */
+    TimerWheel(long tick, int slots, long start) {
+        this.tick = tick;
+        int n = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Timer<T>[] ring = new Timer[n];
+        this.slots = ring;
+        this.mask = n - 1;
+        this.now = start / tick;
+    }
+
+    /**
+     * Usage: starts a timer, or moves it if it is started already.
+     *
+     * @param timer    the timer
+     * @param deadline the time in msec when it is due
+     */
+    void schedule(Timer<T> timer, long deadline) {
+        cancel(timer);
+        long due = Math.max(now + 1, (deadline + tick - 1) / tick); // never in the past
+        timer.turns = (due - now - 1) / slots.length;
+        timer.slot = (int) (due & mask);
+        timer.previous = null;
+        timer.next = slots[timer.slot];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        slots[timer.slot] = timer;
+        size++;
+    }
+
+    /**
+     * Usage: stops a timer if it is started.
+     */
+    void cancel(Timer<T> timer) {
+        if (timer.slot < 0) {
+            return;
+        }
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = timer.next = null;
+        timer.slot = -1;
+        size--;
+    }
+
+    /**
+     * Usage: visits every tick up to the time given and fires the timers due,
+     * each one once; a timer may be started again from expired.
+     *
+     * @param time    the time in msec now
+     * @param expired called with the owner of each timer that fires
+     */
+    void advance(long time, Consumer<T> expired) {
+        long last = time / tick;
+        while (now < last) {
+            now++;
+            int slot = (int) (now & mask);
+            Timer<T> timer = slots[slot];
+            while (timer != null) {
+                Timer<T> next = timer.next;
+                if (timer.turns > 0) {
+                    timer.turns--;
+                } else {
+                    cancel(timer);
+                    expired.accept(timer.owner);
+                }
+                timer = next;
+            }
+        }
+    }
+
+    /** @return msec from time until the next tick */
+    long untilNextTick(long time) {
+        return Math.max(1, (now + 1) * tick - time);
+    }
+
+    /** @return #timers started and not fired */
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,29 @@
+#!/bin/sh
+# Chat throughput benchmark on localhost.
+# $1: #members (default 4)
+# $2: #messages each member sends (default 100000)
+# $3: #chars per message (default 64)
+# $4...: extra Chat options, e.g. -batch 1024 -linger 2 -delta -overlay tree
+# Each member reads its messages from a script instead of the keyboard and
+# prints its delivery throughput once it has received everybody else's.
+members=${1:-4}
+count=${2:-100000}
+size=${3:-64}
+if [ $# -ge 3 ]; then shift 3; else shift $#; fi
+port=7000
+
+javac *.java || exit 1
+script=/tmp/chatbench.$$
+head -c $size /dev/zero | tr '\0' 'x' > $script.line
+awk -v n=$count -v line="$(cat $script.line)" 'BEGIN { for (i = 0; i < n; i++) print line }' > $script
+
+hosts=""
+for i in $(seq 1 $members); do
+	hosts="$hosts localhost:$((port + i))"
+done
+expect=$(( (members - 1) * count ))
+for rank in $(seq 0 $((members - 1))); do
+	java Chat -rank $rank -script $script -expect $expect -quiet "$@" $port $hosts | grep delivered &
+done
+wait
+rm -f $script $script.line
@@ -0,0 +1,25 @@
+#!/bin/sh
+# Runs a cluster of ChatServers on localhost, each linked to all the others.
+# $1: #servers (default 3)
+# $2: the first port (default 7000); server i listens on port + i
+# $3...: extra ChatServer options, e.g. -loops 2 -stats 10
+# Connect ChatClients to any of the ports, e.g.
+#   java ChatClient alice localhost 7000
+#   java ChatClient bob localhost 7001
+# Stop the cluster with ^c.
+servers=${1:-3}
+port=${2:-7000}
+if [ $# -ge 2 ]; then shift 2; else shift $#; fi
+
+javac *.java || exit 1
+trap 'kill $(jobs -p) 2>/dev/null' INT TERM EXIT
+for i in $(seq 0 $((servers - 1))); do
+	peers=""
+	for j in $(seq 0 $((i - 1))); do
+		peers="$peers -peer localhost:$((port + j))"
+	done
+	java ChatServer -id server$i $peers "$@" $((port + i)) | while IFS= read -r line; do
+		echo "[server$i] $line"
+	done &
+done
+wait